@@ -0,0 +1,68 @@
+package com.tzy.toast;
+
+/**
+ * 类描述：随排队长度自适应的显示时长。
+ * <p/>
+ * 没有排队时和系统Toast一样显示2秒或3.5秒，文字较长时按每个字{@link #setMillisPerChar}延长，
+ * 以保证读得完；后面排队的越多，每个Toast显示得越短，时长大约按 backlogScale / (backlogScale + backlog)
+ * 缩短。结果总是限制在[minMillis, maxMillis]之间，所以一连串Toast的总耗时大约是 个数 * minMillis，
+ * 不会像固定时长那样20个就要40秒。
+ * <p/>
+ * 通过{@link ToastManager#setTimingPolicy(ToastScheduler.TimingPolicy)}设置，在主线程上调用。
+ */
+public class AdaptiveTimingPolicy implements ToastScheduler.TimingPolicy {
+    public static final long DEFAULT_MIN_MILLIS = 1000;
+    public static final long DEFAULT_MAX_MILLIS = 5000;
+    public static final long DEFAULT_MILLIS_PER_CHAR = 60;
+    public static final int DEFAULT_BACKLOG_SCALE = 4;
+
+    private final long mMinMillis;
+    private final long mMaxMillis;
+    private long mMillisPerChar = DEFAULT_MILLIS_PER_CHAR;
+    private int mBacklogScale = DEFAULT_BACKLOG_SCALE;
+
+    public AdaptiveTimingPolicy() {
+        this(DEFAULT_MIN_MILLIS, DEFAULT_MAX_MILLIS);
+    }
+
+    /**
+     * @param minMillis 排队再多也至少显示这么久
+     * @param maxMillis 文字再长也最多显示这么久
+     */
+    public AdaptiveTimingPolicy(long minMillis, long maxMillis) {
+        if (minMillis <= 0 || maxMillis < minMillis) {
+            throw new IllegalArgumentException("Invalid bounds: min=" + minMillis + " max=" + maxMillis);
+        }
+        mMinMillis = minMillis;
+        mMaxMillis = maxMillis;
+    }
+
+    /**
+     * 设置阅读每个字需要的时间，文字读完所需的时间超过默认时长时按它来显示。为0时不考虑文字长度。
+     */
+    public AdaptiveTimingPolicy setMillisPerChar(long millisPerChar) {
+        mMillisPerChar = Math.max(0, millisPerChar);
+        return this;
+    }
+
+    /**
+     * 设置排队长度的缩放系数：后面排了这么多个时，显示时长缩短到一半。
+     */
+    public AdaptiveTimingPolicy setBacklogScale(int backlogScale) {
+        if (backlogScale < 1) {
+            throw new IllegalArgumentException("backlogScale must be positive: " + backlogScale);
+        }
+        mBacklogScale = backlogScale;
+        return this;
+    }
+
+    @Override
+    public long getDisplayMillis(int duration, int textLength, int backlog) {
+        long millis = duration == ToastScheduler.LENGTH_LONG ? ToastScheduler.LONG_DELAY : ToastScheduler.SHORT_DELAY;
+        millis = Math.max(millis, textLength * mMillisPerChar);
+        if (backlog > 0) {
+            millis = millis * mBacklogScale / (mBacklogScale + backlog);
+        }
+        return Math.max(mMinMillis, Math.min(mMaxMillis, millis));
+    }
+}
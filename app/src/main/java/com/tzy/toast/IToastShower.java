@@ -6,6 +6,9 @@ package com.tzy.toast;
  * Created by sf on 2016/12/21.
  */
 public interface IToastShower {
-    void show();
+    /**
+     * @param slot 堆叠模式下显示在第几个槽位，从0开始；非堆叠模式总是0
+     */
+    void show(int slot);
     void hide();
 }
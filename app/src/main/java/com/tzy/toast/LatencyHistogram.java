@@ -0,0 +1,87 @@
+package com.tzy.toast;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 类描述：HDR风格的延迟直方图：按2的幂分段，每段再线性分成32个子桶，相对误差约3%。
+ * 所有桶在构造时一次分配好，{@link #record(long)}只是一次原子加，不分配对象，可以在任意线程调用。
+ * 单位由调用方决定，超过{@link #MAX_TRACKABLE_VALUE}的值记在最后一个桶里。
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_SHIFT = 31;
+
+    public static final long MAX_TRACKABLE_VALUE = (1L << (MAX_SHIFT + SUB_BUCKET_BITS + 1)) - 1;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(SUB_BUCKET_COUNT * (MAX_SHIFT + 2));
+
+    public void record(long value) {
+        mCounts.incrementAndGet(indexOf(value));
+    }
+
+    public long getTotalCount() {
+        long total = 0;
+        for (int i = 0; i < mCounts.length(); i++) {
+            total += mCounts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * @param percentile 0到100之间
+     * @return 不小于该比例样本的值（所在桶的下界），没有样本时返回0
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = getTotalCount();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(total * Math.min(percentile, 100.0) / 100.0));
+        long seen = 0;
+        for (int i = 0; i < mCounts.length(); i++) {
+            seen += mCounts.get(i);
+            if (seen >= target) {
+                return lowerBoundOf(i);
+            }
+        }
+        return lowerBoundOf(mCounts.length() - 1);
+    }
+
+    public long getMaxValue() {
+        for (int i = mCounts.length() - 1; i >= 0; i--) {
+            if (mCounts.get(i) != 0) {
+                return lowerBoundOf(i);
+            }
+        }
+        return 0;
+    }
+
+    public void reset() {
+        for (int i = 0; i < mCounts.length(); i++) {
+            mCounts.set(i, 0);
+        }
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return value < 0 ? 0 : (int) value;
+        }
+        if (value > MAX_TRACKABLE_VALUE) {
+            value = MAX_TRACKABLE_VALUE;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+        return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    static long lowerBoundOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+        int subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+        return (long) (SUB_BUCKET_COUNT + subBucket) << shift;
+    }
+}
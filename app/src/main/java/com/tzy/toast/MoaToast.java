@@ -17,22 +17,14 @@
 package com.tzy.toast;
 
 import android.app.Activity;
-import android.app.Dialog;
 import android.content.Context;
-import android.content.res.Configuration;
 import android.content.res.Resources;
-import android.graphics.PixelFormat;
-import android.os.Build;
-import android.os.Handler;
 import android.support.annotation.IntDef;
 import android.support.annotation.StringRes;
 import android.util.Log;
 import android.view.Gravity;
-import android.view.LayoutInflater;
 import android.view.View;
 import android.view.WindowManager;
-import android.view.accessibility.AccessibilityEvent;
-import android.view.accessibility.AccessibilityManager;
 import android.widget.TextView;
 
 import java.lang.annotation.Retention;
@@ -44,7 +36,7 @@ import java.lang.annotation.RetentionPolicy;
  */
 public class MoaToast {
     static final String TAG = "MoaToast";
-    static final boolean localLOGV = true;
+    static final boolean localLOGV = false;
 
     @IntDef({LENGTH_SHORT, LENGTH_LONG})
     @Retention(RetentionPolicy.SOURCE)
@@ -64,15 +56,44 @@ public class MoaToast {
      */
     public static final int LENGTH_LONG = 1;
 
-    private final static String RESOURCE_DIMEN_TYPE = "dimen";
-    private final static String RESOURCE_LAYOUT_TYPE = "layout";
-    //private final static String RESOURCE_ID_TYPE = "id";
+    /**
+     * 每个Toast用一个Dialog窗口显示，能盖住Activity上弹出的Dialog。这是默认值。
+     * @see #setRenderer
+     */
+    public static final int RENDERER_DIALOG = ToastRenderer.DIALOG;
+
+    /**
+     * 把Toast作为子View加到Activity的DecorView上显示，不创建窗口，显示和隐藏都更快，
+     * 但只能显示在Activity自己的内容上面。
+     * @see #setRenderer
+     */
+    public static final int RENDERER_OVERLAY = ToastRenderer.OVERLAY;
+
+    private static volatile int sDefaultRenderer = RENDERER_DIALOG;
 
-    private final static String RESOURCE_DEF_PACKAGE = "android";
     final Activity mContext;
     final TN mTN;
+    final ToastHost mHost;
     int mDuration;
     View mNextView;
+    CharSequence mText;
+    Object mCoalesceKey;
+    int mPriority = ToastScheduler.PRIORITY_NORMAL;
+    long mMaxAgeMillis;
+    Object mTag;
+    int mRenderer = sDefaultRenderer;
+    // 每次show时填好交给队列，队列不会持有它，所以可以复用
+    private final ToastScheduler.Options mOptions = new ToastScheduler.Options();
+    // 以下三个字段由this保护：makeText的视图还在后台准备、准备期间被show过、准备期间文字被改过
+    private boolean mPreparing;
+    private boolean mShowRequested;
+    private boolean mTextChanged;
+    private final ToastViewPool.Callback mViewReady = new ToastViewPool.Callback() {
+        @Override
+        public void onViewReady(ToastViewPool.ViewHolder holder) {
+            onPreparedViewReady(holder);
+        }
+    };
 
     /**
      * Construct an empty MoaToast object.  You must call {@link #setView} before you
@@ -83,14 +104,10 @@ public class MoaToast {
      */
     public MoaToast(Activity context) {
         mContext = context;
-        mTN = new TN();
-        Resources resources = context.getResources();
-        int toastYOffsetRId = resources.getIdentifier("toast_y_offset", RESOURCE_DIMEN_TYPE, RESOURCE_DEF_PACKAGE);
-        if(toastYOffsetRId <= 0){//系统厂商如果把名字改了的话，有可能找不到系统资源，则用自带的资源
-            toastYOffsetRId = R.dimen.toast_y_offset;
-        }
-        mTN.mY = context.getResources().getDimensionPixelSize(
-                toastYOffsetRId);
+        mHost = ToastHost.of(context);
+        mTN = new TN(mHost.getPresenter());
+        //资源id和像素值都来自进程级的缓存，不再每次都getIdentifier
+        mTN.mY = ToastResources.getYOffset(context);
         //int toastGravity = resources.getIdentifier("config_toastDefaultGravity", RESOURCE_INTEGER_TYPE,RESOURCE_DEF_PACKAGE);
         //mTN.mGravity = context.getResources().getInteger(
               //  com.android.internal.R.integer.config_toastDefaultGravity);
@@ -100,17 +117,210 @@ public class MoaToast {
 
     /**
      * Show the view for the specified duration.
+     * 可以在任意线程调用，显示总是发生在主线程上。
      */
-    public void show() {
-        if (mNextView == null) {
+    public synchronized void show() {
+        prepareShowLocked();
+        // 在锁里入队，保证onPreparedViewReady里的markReady不会早于这次入队
+        getService().enqueueToast(mHost.getContextName(), mTN, mOptions);
+    }
+
+    /**
+     * 一次显示多个Toast，效果和依次调用{@link #show()}一样，但只进入队列一次，
+     * 最多触发同时显示个数次显示，而不是每个Toast各自加锁、检查和post。可以在任意线程调用。
+     *
+     * @return 每个Toast的入队结果，{@link ToastScheduler#RESULT_ENQUEUED}等，
+     * 可以用{@link ToastScheduler#isAccepted(int)}判断哪些被拒绝了
+     */
+    public static int[] showAll(MoaToast... toasts) {
+        int count = toasts.length;
+        String[] contextNames = new String[count];
+        IToastShower[] callbacks = new IToastShower[count];
+        ToastScheduler.Options[] options = new ToastScheduler.Options[count];
+        for (int i = 0; i < count; i++) {
+            MoaToast toast = toasts[i];
+            synchronized (toast) {
+                toast.prepareShowLocked();
+                contextNames[i] = toast.mHost.getContextName();
+                callbacks[i] = toast.mTN;
+                // 出了锁以后mOptions可能被这个Toast的另一次show改掉
+                options[i] = new ToastScheduler.Options().set(toast.mOptions);
+            }
+        }
+        int[] results = getService().enqueueAll(contextNames, callbacks, options);
+        for (int i = 0; i < count; i++) {
+            if (!options[i].ready && ToastScheduler.isAccepted(results[i])) {
+                toasts[i].markReadyIfPrepared();
+            }
+        }
+        return results;
+    }
+
+    /**
+     * showAll不能在每个Toast的锁里入队，视图可能在入队之前就准备好了，那时的markReady找不到记录，这里补上。
+     */
+    private void markReadyIfPrepared() {
+        synchronized (this) {
+            if (mPreparing) {
+                // 还在准备，之后onPreparedViewReady会markReady
+                return;
+            }
+        }
+        getService().markReady(mHost.getContextName(), mTN);
+    }
+
+    /**
+     * 暂存要显示的视图并填好mOptions，调用方必须持有this。
+     */
+    private void prepareShowLocked() {
+        boolean ready;
+        if (mNextView != null) {
+            ensureViewOwned();
+            mHost.stageView(mTN, mNextView);
+            ready = true;
+        } else if (mPreparing) {
+            // 视图还在后台inflate，先排队，准备好后再参与调度
+            mShowRequested = true;
+            ready = false;
+        } else {
             throw new RuntimeException("setView must have been called");
         }
 
         ToastManager service = getService();
-        String contextName = mContext.getClass().getSimpleName();
-        TN tn = mTN;
-        tn.mNextView = mNextView;
-        service.enqueueToast(contextName, tn, mDuration);
+        mTN.mRenderer = mRenderer;
+        // 队列里按mHost.getContextName()即Activity实例分组，Activity销毁时它的Toast会被一起移出队列
+        ToastScheduler.Options options = mOptions;
+        options.duration = mDuration;
+        options.coalesceKey = getEffectiveCoalesceKey(service);
+        options.priority = mPriority;
+        options.maxAgeMillis = mMaxAgeMillis;
+        options.textLength = mText == null ? 0 : mText.length();
+        options.tag = mTag;
+        options.owner = mHost;
+        options.ready = ready;
+    }
+
+    /**
+     * makeText在后台准备的视图好了，在主线程调用。
+     */
+    private void onPreparedViewReady(ToastViewPool.ViewHolder holder) {
+        synchronized (this) {
+            if (!mPreparing) {
+                // 准备期间被setView换掉了
+                mHost.getViewPool().release(holder.view, mTN);
+                return;
+            }
+            mPreparing = false;
+            if (mTextChanged) {
+                holder.message.setText(mText);
+                mTextChanged = false;
+            }
+            mNextView = holder.view;
+            if (!mShowRequested) {
+                return;
+            }
+            mShowRequested = false;
+            mHost.stageView(mTN, mNextView);
+        }
+        getService().markReady(mHost.getContextName(), mTN);
+    }
+
+    private Object getEffectiveCoalesceKey(ToastManager service) {
+        if (mCoalesceKey != null) {
+            return mCoalesceKey;
+        }
+        if (mText != null && service.isCoalesceIdenticalText()) {
+            return mText.toString();
+        }
+        return null;
+    }
+
+    /**
+     * 设置合并用的key。同一个Activity里key相同（equals）的Toast正在排队或显示时，
+     * 这个Toast会原地替换它并重新计时，而不是排到队尾，连续点击时队列不会越积越长。
+     *
+     * @param coalesceKey 为null时不合并
+     */
+    public void setCoalesceKey(Object coalesceKey) {
+        mCoalesceKey = coalesceKey;
+    }
+
+    public Object getCoalesceKey() {
+        return mCoalesceKey;
+    }
+
+    /**
+     * 设置优先级。高优先级的Toast先于低优先级的显示，不论入队先后。
+     *
+     * @param priority {@link ToastScheduler#PRIORITY_LOW}、{@link ToastScheduler#PRIORITY_NORMAL}、
+     *                 {@link ToastScheduler#PRIORITY_HIGH}或{@link ToastScheduler#PRIORITY_URGENT}
+     */
+    public void setPriority(int priority) {
+        mPriority = priority;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * 设置最长等待时间。排队超过这个时间还没轮到显示时直接丢弃，过时的提示不再弹出。
+     *
+     * @param maxAgeMillis 为0时不限
+     */
+    public void setMaxAge(long maxAgeMillis) {
+        mMaxAgeMillis = maxAgeMillis;
+    }
+
+    public long getMaxAge() {
+        return mMaxAgeMillis;
+    }
+
+    /**
+     * 设置分组用的tag，之后可以用{@link #cancelByTag(Object)}一次取消所有这个tag的Toast。
+     */
+    public void setTag(Object tag) {
+        mTag = tag;
+    }
+
+    public Object getTag() {
+        return mTag;
+    }
+
+    /**
+     * 设置这个Toast的显示方式，不设置时用{@link #setDefaultRenderer(int)}的值。下一次show()时生效。
+     *
+     * @param renderer {@link #RENDERER_DIALOG}或{@link #RENDERER_OVERLAY}
+     */
+    public void setRenderer(int renderer) {
+        mRenderer = checkRenderer(renderer);
+    }
+
+    public int getRenderer() {
+        return mRenderer;
+    }
+
+    /**
+     * 设置之后创建的MoaToast默认的显示方式，建议在Application.onCreate中调用。
+     *
+     * @param renderer {@link #RENDERER_DIALOG}或{@link #RENDERER_OVERLAY}
+     */
+    public static void setDefaultRenderer(int renderer) {
+        sDefaultRenderer = checkRenderer(renderer);
+    }
+
+    private static int checkRenderer(int renderer) {
+        if (renderer != RENDERER_DIALOG && renderer != RENDERER_OVERLAY) {
+            throw new IllegalArgumentException("Unknown renderer: " + renderer);
+        }
+        return renderer;
+    }
+
+    /**
+     * 取消所有tag相等（equals）的Toast，包括正在显示的，不分Activity。可以在任意线程调用。
+     */
+    public static void cancelByTag(Object tag) {
+        getService().cancelToastsByTag(tag);
     }
 
     /**
@@ -119,23 +329,29 @@ public class MoaToast {
      * after the appropriate duration.
      */
     public void cancel() {
+        synchronized (this) {
+            mShowRequested = false;
+        }
         mTN.hide();
-        getService().cancelToast(mContext.getPackageName(), mTN);
+        // 和入队时用同一个分组名，原来用包名时根本找不到对应的记录
+        getService().cancelToast(mHost.getContextName(), mTN);
     }
 
     /**
      * Set the view to show.
      * @see #getView
      */
-    public void setView(View view) {
+    public synchronized void setView(View view) {
         mNextView = view;
+        mPreparing = false;
     }
 
     /**
      * Return the view.
+     * makeText的视图还在后台准备时返回null。
      * @see #setView
      */
-    public View getView() {
+    public synchronized View getView() {
         return mNextView;
     }
 
@@ -146,7 +362,6 @@ public class MoaToast {
      */
     public void setDuration(@Duration int duration) {
         mDuration = duration;
-        mTN.mDuration = duration;
     }
 
     /**
@@ -221,12 +436,56 @@ public class MoaToast {
         return mTN.mY;
     }
 
+    /**
+     * 提前解析MoaToast用到的系统资源，建议在Application.onCreate中调用。
+     * 之后创建Toast时不再做按名字的资源查找。
+     */
+    public static void preloadResources(Context context) {
+        ToastResources.preload(context);
+    }
+
+    /**
+     * 设置Toast窗口在空闲多久之后销毁。同一个Activity上连续的Toast会复用同一个窗口，
+     * 只替换内容，不需要每次都添加、移除窗口。
+     *
+     * @param idleTimeoutMillis 为0时每个Toast隐藏后立即销毁窗口
+     */
+    public static void setWindowIdleTimeout(long idleTimeoutMillis) {
+        ToastWindow.sIdleTimeout = idleTimeoutMillis;
+    }
+
+    /**
+     * 设置所有Activity的视图池和空闲窗口一共最多保留多少内存（按像素估算），超出时用完就释放，
+     * 下次再重新创建。默认2MB。
+     *
+     * @param bytes 为0时不保留任何空闲的视图和窗口
+     */
+    public static void setRetainedMemoryLimit(long bytes) {
+        ToastMemoryBudget.setLimit(bytes);
+    }
+
+    /**
+     * 设置视图池为空时makeText是否在后台线程inflate，默认打开。关闭后在调用线程上同步inflate。
+     * 布局里有只能在主线程上创建的View时，后台inflate失败会自动退回主线程，一般不需要关闭。
+     */
+    public static void setAsyncInflationEnabled(boolean enabled) {
+        ToastViewPool.sAsyncInflation = enabled;
+    }
+
+    /**
+     * 设置是否播放进入和退出动画，默认打开。关闭后和原来一样直接显示、直接移除，正在播放的动画不受影响。
+     */
+    public static void setAnimationsEnabled(boolean enabled) {
+        ToastAnimator.sEnabled = enabled;
+    }
+
     /**
      * Gets the LayoutParams for the MoaToast window.
+     * 同一个Activity的所有MoaToast共用一份，显示时才按这个Toast的位置参数填写。
      * @hide
      */
     public WindowManager.LayoutParams getWindowParams() {
-        return mTN.mParams;
+        return mHost.getPresenter().getParams();
     }
 
     /**
@@ -242,19 +501,20 @@ public class MoaToast {
     public static MoaToast makeText(Activity context, CharSequence text, @Duration int duration) {
         MoaToast result = new MoaToast(context);
 
-        LayoutInflater inflate = (LayoutInflater)
-                context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-        int layoutId = context.getResources().getIdentifier("transient_notification",RESOURCE_LAYOUT_TYPE,RESOURCE_DEF_PACKAGE);
-        if(layoutId <= 0){//系统厂商如果把名字改了的话，有可能找不到系统资源，则用自带的资源
-            layoutId = R.layout.transient_notification;
-        }
-        View v = inflate.inflate(layoutId, null);
-        TextView tv = (TextView)v.findViewById(android.R.id.message);
-        tv.setText(text);
-
-        result.mNextView = v;
+        result.mText = text;
         result.mDuration = duration;
 
+        //视图从Activity的视图池中取；池是空的时候在后台线程inflate，好了之后再参与调度
+        //断行和字形测量也先在后台线程做一遍，显示时主线程上的measure会快很多
+        synchronized (result) {
+            ToastViewPool.ViewHolder holder = result.mHost.getViewPool().prepare(result.mTN, text, result.mViewReady);
+            if (holder != null) {
+                result.mNextView = holder.view;
+            } else {
+                result.mPreparing = true;
+            }
+        }
+
         return result;
     }
 
@@ -286,179 +546,82 @@ public class MoaToast {
      * Update the text in a MoaToast that was previously created using one of the makeText() methods.
      * @param s The new text for the MoaToast.
      */
-    public void setText(CharSequence s) {
+    public synchronized void setText(CharSequence s) {
+        if (mPreparing) {
+            // 视图准备好时再绑定
+            mText = s;
+            mTextChanged = true;
+            return;
+        }
         if (mNextView == null) {
             throw new RuntimeException("This MoaToast was not created with MoaToast.makeText()");
         }
-        TextView tv = (TextView) mNextView.findViewById(android.R.id.message);
+        ensureViewOwned();
+        ToastViewPool.ViewHolder holder = ToastViewPool.holderOf(mNextView);
+        TextView tv = holder != null ? holder.message : (TextView) mNextView.findViewById(android.R.id.message);
         if (tv == null) {
             throw new RuntimeException("This MoaToast was not created with MoaToast.makeText()");
         }
         tv.setText(s);
+        ToastTextPrefetcher.prefetch(tv, s);
+        mText = s;
+    }
+
+    /**
+     * makeText的视图在Toast隐藏后会回到视图池，可能已经被别的Toast拿去用了，
+     * 这时重新从池里取一个并绑定上原来的文字。
+     */
+    private void ensureViewOwned() {
+        ToastViewPool.ViewHolder holder = ToastViewPool.holderOf(mNextView);
+        if (holder != null && holder.owner != mTN) {
+            holder = mHost.getViewPool().acquire(mTN);
+            holder.message.setText(mText);
+            mNextView = holder.view;
+        }
     }
 
     // =======================================================================================
     // 以下方法维护toast队列
     // =======================================================================================
 
-    private ToastManager getService() {
+    private static ToastManager getService() {
         return ToastManager.getInstance();
     }
 
-    private static class TN implements IToastShower {
-        final Runnable mShow = new Runnable() {
-            @Override
-            public void run() {
-                handleShow();
-            }
-        };
-
-        final Runnable mHide = new Runnable() {
-            @Override
-            public void run() {
-                handleHide();
-                // Don't do this in handleHide() because it is also invoked by handleShow()
-                mNextView = null;
-            }
-        };
-
-        private final WindowManager.LayoutParams mParams = new WindowManager.LayoutParams();
-        final Handler mHandler = new Handler();
-
+    /**
+     * 这个Toast在队列里的身份，也是它自己的位置参数。Handler、LayoutParams和显示逻辑都在同一个Activity共用的
+     * {@link ToastPresenter}里，这里只剩几个字段，makeText一次不再多出一套Handler和Runnable。
+     * <p/>
+     * TN会进入全局队列，所以不能引用Activity和MoaToast，只引用不持有Activity的presenter。
+     */
+    static final class TN implements IToastShower, ToastScheduler.FinishingAware {
+        final ToastPresenter mPresenter;
         int mGravity;
         int mX, mY;
         float mHorizontalMargin;
         float mVerticalMargin;
+        // 下一次显示用的渲染方式
+        volatile int mRenderer;
 
-
-        View mView;
-        View mNextView;
-        int mDuration;
-
-        WindowManager mWM;
-        Dialog dialog ;
-        TN() {
-            // XXX This should be changed to use a Dialog, with a Theme.MoaToast
-            // defined that sets up the layout params appropriately.
-            final WindowManager.LayoutParams params = mParams;
-            params.height = WindowManager.LayoutParams.WRAP_CONTENT;
-            params.width = WindowManager.LayoutParams.WRAP_CONTENT;
-            params.format = PixelFormat.TRANSLUCENT;
-            //先不要带动画，动画在Activity关闭时，有点问题
-            //params.windowAnimations = android.R.style.Animation_Toast;
-            //params.type = WindowManager.LayoutParams.TYPE_TOAST;
-            params.setTitle("MoaToast");
-            params.flags = WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON
-                    | WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE
-                    | WindowManager.LayoutParams.FLAG_NOT_TOUCHABLE;
+        TN(ToastPresenter presenter) {
+            mPresenter = presenter;
         }
 
-        /**
-         * schedule handleShow into the right thread
-         */
         @Override
-        public void show() {
-            if (localLOGV) Log.v(TAG, "SHOW: " + this);
-            mHandler.post(mShow);
+        public void show(int slot) {
+            if (localLOGV) Log.v(TAG, "SHOW: " + this + " slot=" + slot);
+            mPresenter.show(this, slot);
         }
 
-        /**
-         * schedule handleHide into the right thread
-         */
         @Override
         public void hide() {
             if (localLOGV) Log.v(TAG, "HIDE: " + this);
-            mHandler.post(mHide);
-        }
-
-        /**
-         *
-         * 这里是弹出一个Toast的具体实现。
-         * 最开始，是采用与原生Toast一样的实现方式，但是经过测试，发现原生的实现方式
-         * 在MIUI8上无效，即无法弹出Toast；在CM系统中，如果自定义的Toast和原生Toast同时弹出，会出现奔溃。
-         * 所以无法采用原生的方案来实现Toast。现在改为用Dialog来实现，但是Dialog的生命周期是绑定于Activity的，
-         * 也就是说该Toast的上下文对象只能是Activity,Service或者 Application等其他上下文对象不能使用该Toast.
-         *
-         * */
-        public void handleShow() {
-            if (localLOGV) Log.v(TAG, "HANDLE SHOW: " + this + " mView=" + mView
-                    + " mNextView=" + mNextView);
-            if (mView != mNextView) {
-                // remove the old view if necessary
-                handleHide();
-                mView = mNextView;
-                Activity context = (Activity) mView.getContext();
-                if(context.isFinishing() ) {
-                    return;
-                }
-
-                mWM = (WindowManager)context.getSystemService(Context.WINDOW_SERVICE);
-                // We can resolve the Gravity here by using the Locale for getting
-                // the layout direction
-                final Configuration config = mView.getContext().getResources().getConfiguration();
-                final int gravity;
-                if(Build.VERSION.SDK_INT >= 17){
-                    gravity = Gravity.getAbsoluteGravity(mGravity, config.getLayoutDirection());
-                }else{
-                    gravity = mGravity;
-                }
-                mParams.gravity = gravity;
-                if ((gravity & Gravity.HORIZONTAL_GRAVITY_MASK) == Gravity.FILL_HORIZONTAL) {
-                    mParams.horizontalWeight = 1.0f;
-                }
-                if ((gravity & Gravity.VERTICAL_GRAVITY_MASK) == Gravity.FILL_VERTICAL) {
-                    mParams.verticalWeight = 1.0f;
-                }
-                mParams.x = mX;
-                mParams.y = mY;
-                mParams.verticalMargin = mVerticalMargin;
-                mParams.horizontalMargin = mHorizontalMargin;
-                if (mView.getParent() != null && dialog != null && dialog.isShowing()) {
-                    if (localLOGV) Log.v(TAG, "dialog= " + dialog + " dismiss in" + this);
-                    dialog.dismiss();
-                }
-                if (localLOGV) Log.v(TAG, "dialog= " + dialog + " show in " + this);
-
-                dialog = new Dialog(context,  R.style.moaToastDialog);
-                dialog.setContentView(mView);
-                dialog.getWindow().setAttributes(mParams);
-                dialog.show();
-
-                trySendAccessibilityEvent();
-            }
+            mPresenter.hide(this);
         }
 
-        private void trySendAccessibilityEvent() {
-            AccessibilityManager accessibilityManager =
-                    (AccessibilityManager) mView.getContext().getSystemService(Context.ACCESSIBILITY_SERVICE);
-            if (!accessibilityManager.isEnabled()) {
-                return;
-            }
-            // treat toasts as notifications since they are used to
-            // announce a transient piece of information to the user
-            AccessibilityEvent event = AccessibilityEvent.obtain(
-                    AccessibilityEvent.TYPE_NOTIFICATION_STATE_CHANGED);
-            event.setClassName(getClass().getName());
-            event.setPackageName(mView.getContext().getPackageName());
-            mView.dispatchPopulateAccessibilityEvent(event);
-            accessibilityManager.sendAccessibilityEvent(event);
-        }
-
-        public void handleHide() {
-            if (localLOGV) Log.v(TAG, "HANDLE HIDE: " + this + " mView=" + mView);
-            if (mView != null && mView.getWindowToken() != null) {
-
-                Activity activity = (Activity) mView.getContext();
-                mView = null;
-                if(activity.isFinishing()){
-                    return;
-                }
-                if(dialog != null && dialog.isShowing() ) {
-                    dialog.dismiss();
-                }
-            }
-
-
+        @Override
+        public boolean isFinishing() {
+            return mPresenter.isHostFinishing();
         }
     }
 }
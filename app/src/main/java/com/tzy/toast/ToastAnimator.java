@@ -0,0 +1,185 @@
+package com.tzy.toast;
+
+import android.animation.Animator;
+import android.animation.TimeInterpolator;
+import android.content.Context;
+import android.view.View;
+import android.view.ViewPropertyAnimator;
+import android.view.animation.Animation;
+import android.view.animation.AnimationUtils;
+import android.view.animation.DecelerateInterpolator;
+
+/**
+ * 类描述：Toast视图的进入和退出动画，由两个{@link ToastRenderer}共用，所有方法都在主线程调用。
+ * <p/>
+ * 原来TN干脆关掉了窗口动画，切换Toast就是一个窗口突然消失、下一个突然出现。现在动画做在视图上而不是窗口上：
+ * <ul>
+ * <li>旧Toast的退出和新Toast的进入同时进行，队列不等退出动画，隐藏后马上显示下一个，所以总的显示时间不变</li>
+ * <li>用ViewPropertyAnimator只改alpha，动画期间视图放在硬件层上，每一帧只是合成一次纹理，不重新绘制内容</li>
+ * <li>动画可以随时打断：被合并替换或者被抢占时退出动画从当前的alpha开始，正在退出的视图再次显示时直接从当前的alpha淡入</li>
+ * </ul>
+ * 时长和插值器取自res/anim里的toast_enter和toast_exit，但不超过{@link #MAX_DURATION_MILLIS}，
+ * 退出中的视图最多只多占几帧。每个视图的状态挂在它的tag上，视图回到视图池后下次接着用，动画本身不再分配额外的对象。
+ */
+final class ToastAnimator implements Animator.AnimatorListener {
+    static final long MAX_DURATION_MILLIS = 250;
+
+    /**
+     * 为false时没有动画，和原来一样直接显示、直接移除。
+     */
+    static volatile boolean sEnabled = true;
+
+    private static long sEnterDuration = -1;
+    private static long sExitDuration;
+    private static TimeInterpolator sEnterInterpolator;
+    private static TimeInterpolator sExitInterpolator;
+
+    /**
+     * 退出动画结束后的回调，这时视图还在原来的容器里，由回调方移除。
+     */
+    interface ExitListener {
+        void onExitEnd(View view);
+    }
+
+    private final View mView;
+    private ExitListener mExitListener;
+    // 动画开始前的layer类型，动画期间临时换成硬件层
+    private int mSavedLayerType = -1;
+    // cancel()会同步回调onAnimationEnd，这时不能当成动画正常结束
+    private boolean mCancelling;
+
+    private ToastAnimator(View view) {
+        mView = view;
+    }
+
+    /**
+     * 淡入显示view。view正在退出时打断退出，从当前的alpha开始淡入。
+     */
+    static void enter(View view) {
+        ToastAnimator animator = of(view);
+        boolean wasExiting = animator.stop();
+        if (!sEnabled) {
+            view.setAlpha(1);
+            return;
+        }
+        loadResources(view.getContext());
+        if (!wasExiting) {
+            view.setAlpha(0);
+        }
+        animator.start(1, sEnterDuration, sEnterInterpolator);
+    }
+
+    /**
+     * 淡出view，结束后回调listener。已经在淡入时从当前的alpha开始淡出。
+     *
+     * @return 是否开始了退出动画，为false时调用方应该立即移除view，listener不会被回调
+     */
+    static boolean exit(View view, ExitListener listener) {
+        ToastAnimator animator = of(view);
+        animator.stop();
+        if (!sEnabled || view.getAlpha() == 0) {
+            view.setAlpha(1);
+            return false;
+        }
+        loadResources(view.getContext());
+        animator.mExitListener = listener;
+        animator.start(0, sExitDuration, sExitInterpolator);
+        return true;
+    }
+
+    /**
+     * 停止view上的动画，不回调退出的listener，alpha恢复成1。视图被强制移除（比如Activity销毁）时调用。
+     */
+    static void cancel(View view) {
+        Object tag = view.getTag(R.id.moa_toast_animation);
+        if (tag instanceof ToastAnimator) {
+            ((ToastAnimator) tag).stop();
+        }
+        view.setAlpha(1);
+    }
+
+    private static ToastAnimator of(View view) {
+        Object tag = view.getTag(R.id.moa_toast_animation);
+        if (tag instanceof ToastAnimator) {
+            return (ToastAnimator) tag;
+        }
+        ToastAnimator animator = new ToastAnimator(view);
+        view.setTag(R.id.moa_toast_animation, animator);
+        return animator;
+    }
+
+    private static void loadResources(Context context) {
+        if (sEnterDuration >= 0) {
+            return;
+        }
+        Animation enter = AnimationUtils.loadAnimation(context, R.anim.toast_enter);
+        Animation exit = AnimationUtils.loadAnimation(context, R.anim.toast_exit);
+        sEnterDuration = Math.min(enter.getDuration(), MAX_DURATION_MILLIS);
+        sExitDuration = Math.min(exit.getDuration(), MAX_DURATION_MILLIS);
+        sEnterInterpolator = enter.getInterpolator() != null ? enter.getInterpolator() : new DecelerateInterpolator();
+        sExitInterpolator = exit.getInterpolator() != null ? exit.getInterpolator() : new DecelerateInterpolator();
+    }
+
+    private void start(float alpha, long duration, TimeInterpolator interpolator) {
+        mView.animate()
+                .alpha(alpha)
+                .setDuration(duration)
+                .setInterpolator(interpolator)
+                .setListener(this);
+    }
+
+    /**
+     * @return 是否打断了一个退出动画
+     */
+    private boolean stop() {
+        boolean wasExiting = mExitListener != null;
+        mExitListener = null;
+        mCancelling = true;
+        try {
+            mView.animate().cancel();
+        } finally {
+            mCancelling = false;
+        }
+        restoreLayer();
+        return wasExiting;
+    }
+
+    private void restoreLayer() {
+        if (mSavedLayerType >= 0) {
+            mView.setLayerType(mSavedLayerType, null);
+            mSavedLayerType = -1;
+        }
+    }
+
+    @Override
+    public void onAnimationStart(Animator animation) {
+        // 和withLayer()一样，只是withLayer要API 16
+        if (mSavedLayerType < 0 && mView.getLayerType() == View.LAYER_TYPE_NONE) {
+            mSavedLayerType = View.LAYER_TYPE_NONE;
+            mView.setLayerType(View.LAYER_TYPE_HARDWARE, null);
+        }
+    }
+
+    @Override
+    public void onAnimationEnd(Animator animation) {
+        if (mCancelling) {
+            return;
+        }
+        restoreLayer();
+        ExitListener listener = mExitListener;
+        if (listener != null) {
+            mExitListener = null;
+            // 视图会回到视图池，下次可能不带动画直接显示
+            mView.setAlpha(1);
+            listener.onExitEnd(mView);
+        }
+    }
+
+    @Override
+    public void onAnimationCancel(Animator animation) {
+    }
+
+    @Override
+    public void onAnimationRepeat(Animator animation) {
+    }
+}
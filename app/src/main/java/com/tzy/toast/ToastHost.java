@@ -0,0 +1,219 @@
+package com.tzy.toast;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Bundle;
+import android.os.Looper;
+import android.view.View;
+
+import java.lang.ref.WeakReference;
+import java.util.IdentityHashMap;
+import java.util.WeakHashMap;
+
+/**
+ * 类描述：一个Activity上所有MoaToast共享的东西：队列里的context名、视图池、{@link ToastPresenter}
+ * 和显示用的{@link ToastRenderer}。
+ * Activity销毁时通过ActivityLifecycleCallbacks释放，并把这个Activity还在排队的Toast一次性移出队列。
+ * <p/>
+ * ToastHost只被它的Activity强引用（挂在decorView的tag上），静态的注册表和队列里的记录都只弱引用它，
+ * 排队中的视图也由它而不是TN持有。这样即使生命周期回调没有来，全局的ToastManager也不会让Activity泄漏：
+ * Activity被回收后ToastHost随之被回收，队列在下一次操作时移除对应的记录。
+ * <p/>
+ * 挂tag不能为此创建decorView：getDecorView()会installDecor，onCreate里setContentView之前new MoaToast
+ * 会让之后的requestWindowFeature抛异常，而且创建MoaToast可能在任意线程。所以只在主线程上、decorView已经存在时才挂，
+ * 在那之前由{@link #sPendingHosts}强引用，第一次在主线程处理显示命令或者Activity销毁时移除。
+ */
+final class ToastHost {
+    private static final WeakHashMap<Activity, WeakReference<ToastHost>> sHosts = new WeakHashMap<>();
+    private static Application sRegisteredApplication;
+    // 还没挂到decorView上的，由sHosts保护
+    private static final IdentityHashMap<Activity, ToastHost> sPendingHosts = new IdentityHashMap<>();
+
+    // 只计算一次并intern，显示和取消都用同一个引用，队列里查找时比较引用就够了
+    private final String mContextName;
+    private final ToastViewPool mViewPool;
+    private final ToastPresenter mPresenter;
+    private final Activity mActivity;
+    // 每个槽位一个窗口，堆叠模式下才会用到0以外的，只在主线程访问
+    private final ToastWindow[] mWindows = new ToastWindow[ToastScheduler.MAX_VISIBLE];
+    // 所有槽位共用，第一次用到时才往decorView上加容器
+    private ToastOverlay mOverlay;
+    // 是否已经挂到decorView的tag上，只在主线程访问
+    private boolean mAttached;
+    // 已经show()、还在排队的视图，key是TN。只在主线程访问
+    private final IdentityHashMap<Object, View> mStagedViews = new IdentityHashMap<>();
+
+    private ToastHost(Activity activity) {
+        // 同一个Activity类可能同时有多个实例，所以带上实例的标识
+        mContextName = (activity.getClass().getSimpleName() + "@"
+                + Integer.toHexString(System.identityHashCode(activity))).intern();
+        mViewPool = new ToastViewPool(activity);
+        mPresenter = new ToastPresenter(this);
+        mActivity = activity;
+    }
+
+    static ToastHost of(Activity activity) {
+        ToastHost host;
+        synchronized (sHosts) {
+            WeakReference<ToastHost> ref = sHosts.get(activity);
+            host = ref != null ? ref.get() : null;
+            if (host == null) {
+                host = new ToastHost(activity);
+                sHosts.put(activity, new WeakReference<>(host));
+                sPendingHosts.put(activity, host);
+                registerLifecycleCallbacks(activity);
+            }
+        }
+        host.attachToDecor();
+        return host;
+    }
+
+    /**
+     * 把自己挂到decorView的tag上，之后由Activity强引用，生命周期和Activity一致。
+     * 不在主线程或者decorView还没创建时什么也不做，不会为此创建decorView。
+     */
+    void attachToDecor() {
+        if (mAttached || Looper.myLooper() != Looper.getMainLooper()) {
+            return;
+        }
+        View decor = mActivity.getWindow().peekDecorView();
+        if (decor == null) {
+            return;
+        }
+        decor.setTag(R.id.moa_toast_host, this);
+        mAttached = true;
+        synchronized (sHosts) {
+            sPendingHosts.remove(mActivity);
+        }
+    }
+
+    boolean isFinishing() {
+        return mActivity.isFinishing();
+    }
+
+    /**
+     * @return 这个Activity的Toast在队列中的分组名
+     */
+    String getContextName() {
+        return mContextName;
+    }
+
+    /**
+     * 保存owner要显示的视图，直到显示完或被取消。
+     */
+    void stageView(Object owner, View view) {
+        synchronized (mStagedViews) {
+            mStagedViews.put(owner, view);
+        }
+    }
+
+    View getStagedView(Object owner) {
+        synchronized (mStagedViews) {
+            return mStagedViews.get(owner);
+        }
+    }
+
+    View unstageView(Object owner) {
+        synchronized (mStagedViews) {
+            return mStagedViews.remove(owner);
+        }
+    }
+
+    ToastViewPool getViewPool() {
+        return mViewPool;
+    }
+
+    /**
+     * @return 这个Activity的Toast共用的显示机制，TN的show/hide都交给它
+     */
+    ToastPresenter getPresenter() {
+        return mPresenter;
+    }
+
+    /**
+     * @param type {@link ToastRenderer#DIALOG}或{@link ToastRenderer#OVERLAY}
+     */
+    ToastRenderer getRenderer(int type, int slot) {
+        if (type == ToastRenderer.OVERLAY) {
+            if (mOverlay == null) {
+                mOverlay = new ToastOverlay(mActivity, mPresenter);
+            }
+            return mOverlay;
+        }
+        return getWindow(slot);
+    }
+
+    ToastWindow getWindow(int slot) {
+        ToastWindow window = mWindows[slot];
+        if (window == null) {
+            window = new ToastWindow(mActivity, mPresenter);
+            mWindows[slot] = window;
+        }
+        return window;
+    }
+
+    private void release() {
+        ToastManager.getInstance().purgeContext(mContextName);
+        for (ToastWindow window : mWindows) {
+            if (window != null) {
+                window.dismiss();
+            }
+        }
+        if (mOverlay != null) {
+            mOverlay.dismiss();
+        }
+        mPresenter.release();
+        mViewPool.clear();
+        synchronized (mStagedViews) {
+            mStagedViews.clear();
+        }
+    }
+
+    private static void registerLifecycleCallbacks(Activity activity) {
+        Application application = activity.getApplication();
+        if (application == null || application == sRegisteredApplication) {
+            return;
+        }
+        sRegisteredApplication = application;
+        application.registerActivityLifecycleCallbacks(new LifecycleCallbacks());
+    }
+
+    private static final class LifecycleCallbacks implements Application.ActivityLifecycleCallbacks {
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+            WeakReference<ToastHost> ref;
+            synchronized (sHosts) {
+                ref = sHosts.remove(activity);
+                sPendingHosts.remove(activity);
+            }
+            ToastHost host = ref != null ? ref.get() : null;
+            if (host != null) {
+                host.release();
+            }
+        }
+
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+        }
+
+        @Override
+        public void onActivityStarted(Activity activity) {
+        }
+
+        @Override
+        public void onActivityResumed(Activity activity) {
+        }
+
+        @Override
+        public void onActivityPaused(Activity activity) {
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.tzy.toast;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 类描述：无锁的多生产者单消费者队列（Dmitry Vyukov的侵入式MPSC队列），
+ * 用来让任意线程提交Toast，再由主线程批量取出。
+ * <p/>
+ * {@link #offer}可以在任意线程并发调用，只有一次getAndSet，不加锁；
+ * {@link #poll}和{@link #isEmpty}只能在唯一的消费者线程上调用。
+ * 元素本身就是链表节点，入队不会再额外分配对象。
+ */
+public class ToastIngestQueue<T extends ToastIngestQueue.Node> {
+
+    public static class Node {
+        volatile Node next;
+    }
+
+    private final Node mStub = new Node();
+    // 生产者一侧，最后入队的节点
+    private final AtomicReference<Node> mHead = new AtomicReference<>(mStub);
+    // 消费者一侧，下一个要取出的节点，只有消费者线程访问
+    private Node mTail = mStub;
+
+    public void offer(T node) {
+        enqueue(node);
+    }
+
+    private void enqueue(Node node) {
+        node.next = null;
+        Node prev = mHead.getAndSet(node);
+        // 在这两步之间，链表是暂时断开的，poll会把这种状态当成空队列
+        prev.next = node;
+    }
+
+    /**
+     * @return 下一个元素，队列为空或者生产者还没来得及把节点链上时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        Node tail = mTail;
+        Node next = tail.next;
+        if (tail == mStub) {
+            if (next == null) {
+                return null;
+            }
+            mTail = next;
+            tail = next;
+            next = next.next;
+        }
+        if (next != null) {
+            mTail = next;
+            tail.next = null;
+            return (T) tail;
+        }
+        if (tail != mHead.get()) {
+            // 有生产者正在入队
+            return null;
+        }
+        enqueue(mStub);
+        next = tail.next;
+        if (next != null) {
+            mTail = next;
+            tail.next = null;
+            return (T) tail;
+        }
+        return null;
+    }
+
+    /**
+     * @return 是否确实没有元素，包括正在入队的
+     */
+    public boolean isEmpty() {
+        return mTail == mStub && mHead.get() == mStub;
+    }
+}
@@ -1,33 +1,54 @@
 package com.tzy.toast;
 
 import android.os.Handler;
-import android.os.Message;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.PrintWriter;
-import java.util.ArrayList;
-import java.util.ListIterator;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * 类描述：该类模仿了系统的NotificationManagerService 来维护 Toast 队列。
- * 该类有很多英文注释，这些注释是在搬运NotificationManagerService的方法时顺便搬过来的。
+ * 队列本身的逻辑都在{@link ToastScheduler}中，该类只是把它接到Android上：
+ * 时间用{@link SystemClock#uptimeMillis()}，定时任务跑在主线程的Handler上，pid取当前进程。
+ * 所有Toast的定时都由队列内部的{@link ToastTimerWheel}合并，Handler上同一时间最多只有一个定时消息。
+ * <p/>
+ * 入队和取消可以在任意线程调用。主线程上的调用直接进入队列；其他线程的调用先放进无锁的
+ * {@link ToastIngestQueue}，由主线程成批取出，每一批只post一次，而不是每个Toast都post一次。
  * <p/>
  * Created by tzy on 2016/12/21.
  */
 public class ToastManager {
     private static final String TAG = "ToastManager";
-    private static final int MAX_PACKAGE_NOTIFICATIONS = 50;
-    // message codes
-    private static final int MESSAGE_TIMEOUT = 2;
-    private static final int LONG_DELAY = 3500; // 3.5 seconds
-    private static final int SHORT_DELAY = 2000; // 2 seconds
 
-    private WorkerHandler mHandler;
-    private ArrayList<ToastRecord> mToastQueue;
+    private final ToastScheduler mScheduler;
+    private final Handler mMainHandler;
+    private final ToastIngestQueue<Submission> mSubmissions = new ToastIngestQueue<>();
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            // 先清标志再取，之后提交的元素会触发新的一次post，不会被漏掉
+            mDrainScheduled.set(false);
+            ToastTrace.beginSection("MoaToast.drain");
+            try {
+                drainSubmissions();
+            } finally {
+                ToastTrace.endSection();
+            }
+            if (!mSubmissions.isEmpty()) {
+                // 有生产者正在入队，还没链上
+                scheduleDrain();
+            }
+        }
+    };
+    private volatile boolean mCoalesceIdenticalText;
+    // 用户注册的指标回调，在抓trace时交给队列的是包了一层trace的
+    private volatile ToastMetrics mMetrics;
 
     private ToastManager() {
-        mToastQueue = new ArrayList<>();
-        mHandler = new WorkerHandler();
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mScheduler = new ToastScheduler(new UptimeClock(), new HandlerExecutor(mMainHandler));
     }
 
     private static volatile ToastManager singleton;
@@ -47,192 +68,381 @@ public class ToastManager {
     //---------------------维护Toast队列的方法------------------\\
 
     public void enqueueToast(String contextName, IToastShower callback, int duration) {
-        Log.i(TAG, "enqueueToast contextName=" + contextName + " callback=" + callback + " duration=" + duration);
+        enqueueToast(contextName, callback, duration, null);
+    }
+
+    /**
+     * @param coalesceKey 不为null时，同一个context里相同key的Toast（排队中或正在显示）
+     *                    会被这个Toast原地替换并重新计时，而不是排到队尾
+     */
+    public void enqueueToast(String contextName, IToastShower callback, int duration, Object coalesceKey) {
+        ToastScheduler.Options options = new ToastScheduler.Options(duration);
+        options.coalesceKey = coalesceKey;
+        enqueueToast(contextName, callback, options);
+    }
+
+    /**
+     * @param options 时长、合并key、优先级和最长等待时间。调用返回后options可以被修改或复用
+     */
+    public void enqueueToast(String contextName, IToastShower callback, ToastScheduler.Options options) {
+        // 拼接字符串每次都要分配，只在调试时输出
+        if (MoaToast.localLOGV) {
+            Log.v(TAG, "enqueueToast contextName=" + contextName + " callback=" + callback
+                    + " duration=" + options.duration + " coalesceKey=" + options.coalesceKey
+                    + " priority=" + options.priority);
+        }
 
         if (contextName == null || callback == null) {
             Log.e(TAG, "Not doing toast. contextName=" + contextName + " callback=" + callback);
             return;
         }
 
-        synchronized (mToastQueue) {
-
-            ToastRecord record;
-            int index = indexOfToastLocked(contextName, callback);
-            // If it's already in the queue, we update it in place, we don't
-            // move it to the end of the queue.
-            if (index >= 0) {
-                record = mToastQueue.get(index);
-                record.update(duration);
-            } else {
-                // Limit the number of toasts that any given package except the android
-                // package can enqueue.  Prevents DOS attacks and deals with leaks.
-                int count = 0;
-                final int N = mToastQueue.size();
-                for (int i = 0; i < N; i++) {
-                    final ToastRecord r = mToastQueue.get(i);
-                    if (r.contextName.equals(contextName)) {
-                        count++;
-                        if (count >= MAX_PACKAGE_NOTIFICATIONS) {
-                            Log.e(TAG, "Package has already posted " + count
-                                    + " toasts. Not showing more. contextName=" + contextName);
-                            return;
-                        }
-                    }
-                }
-                int callingPid = android.os.Process.myPid();
-                record = new ToastRecord(callingPid, contextName, callback, duration);
-                mToastQueue.add(record);
-                index = mToastQueue.size() - 1;
-                keepProcessAliveLocked(callingPid);
+        if (isMainThread()) {
+            ToastTrace.beginSection("MoaToast.enqueue");
+            try {
+                // 先把其他线程已经提交的处理掉，保证提交顺序
+                drainSubmissions();
+                doEnqueue(contextName, callback, options);
+            } finally {
+                ToastTrace.endSection();
             }
-            // If it's at index 0, it's the current toast.  It doesn't matter if it's
-            // new or just been updated.  Call back and tell it to show itself.
-            // If the callback fails, this will remove it from the list, so don't
-            // assume that it's valid after this.
-            if (index == 0) {
-                showNextToastLocked();
-            }
-
+        } else {
+            // 复制一份，调用方可能在主线程处理之前就改了options
+            submit(new Submission(Submission.ENQUEUE, contextName, callback,
+                    new ToastScheduler.Options().set(options)));
         }
     }
 
-    private int indexOfToastLocked(String contextName, IToastShower callback) {
-        ArrayList<ToastRecord> list = mToastQueue;
-        int len = list.size();
-        for (int i = 0; i < len; i++) {
-            ToastRecord r = list.get(i);
-            if (r.contextName.equals(contextName) && r.callback == callback) {
-                return i;
-            }
+    private void doEnqueue(String contextName, IToastShower callback, ToastScheduler.Options options) {
+        updateTracing();
+        int result = mScheduler.enqueueToast(android.os.Process.myPid(), contextName, callback, options);
+        if (result == ToastScheduler.RESULT_REJECTED_QUOTA) {
+            Log.e(TAG, "Context is posting toasts too fast. Not showing. contextName=" + contextName);
+        } else if (result == ToastScheduler.RESULT_REJECTED_GLOBAL_QUOTA) {
+            Log.e(TAG, "Process is posting toasts too fast. Not showing. contextName=" + contextName);
+        } else if (result == ToastScheduler.RESULT_REJECTED_CAPACITY) {
+            Log.e(TAG, "Toast queue is full. Not showing. contextName=" + contextName
+                    + " priority=" + options.priority);
         }
-        return -1;
     }
 
-    private void handleTimeout(ToastRecord record) {
-        Log.e(TAG, "Timeout contextName=" + record.contextName + " callback=" + record.callback);
-        synchronized (mToastQueue) {
-            int index = indexOfToastLocked(record.contextName, record.callback);
-            if (index >= 0) {
-                cancelToastLocked(index);
+    /**
+     * 一次入队多个Toast，三个数组按下标一一对应。在队列的同一次加锁中完成所有的数量检查和插入，
+     * 最多触发空闲槽位数个显示（更新或合并到正在显示的Toast的，每个正在显示的再重新显示一次），
+     * 适合同步结果之类一次弹出好几条的场景。
+     * <p/>
+     * 为了能直接返回结果，其他线程上调用时也不经过提交队列，和这个线程之前提交、主线程还没处理的单个入队之间不保证先后。
+     *
+     * @return 每个Toast的结果，{@link ToastScheduler#RESULT_ENQUEUED}等，
+     * 可以用{@link ToastScheduler#isAccepted(int)}判断哪些被拒绝了
+     */
+    public int[] enqueueAll(String[] contextNames, IToastShower[] callbacks, ToastScheduler.Options[] options) {
+        if (MoaToast.localLOGV) {
+            Log.v(TAG, "enqueueAll count=" + contextNames.length);
+        }
+
+        if (isMainThread()) {
+            drainSubmissions();
+        }
+        updateTracing();
+        int[] results = mScheduler.enqueueAll(android.os.Process.myPid(), contextNames, callbacks, options);
+        int rejected = 0;
+        for (int result : results) {
+            if (!ToastScheduler.isAccepted(result)) {
+                rejected++;
             }
         }
+        if (rejected > 0) {
+            Log.e(TAG, "enqueueAll rejected " + rejected + " of " + results.length + " toasts");
+        }
+        return results;
     }
 
     public void cancelToast(String contextName, IToastShower callback) {
-        Log.i(TAG, "cancelToast contextName=" + contextName + " callback=" + callback);
+        if (MoaToast.localLOGV) {
+            Log.v(TAG, "cancelToast contextName=" + contextName + " callback=" + callback);
+        }
 
         if (contextName == null || callback == null) {
             Log.e(TAG, "Not cancelling notification. contextName=" + contextName + " callback=" + callback);
             return;
         }
 
-        synchronized (mToastQueue) {
-            int index = indexOfToastLocked(contextName, callback);
-            if (index >= 0) {
-                cancelToastLocked(index);
-            } else {
-                Log.w(TAG, "MoaToast already cancelled. contextName=" + contextName + " callback=" + callback);
-            }
-
+        if (isMainThread()) {
+            drainSubmissions();
+            doCancel(contextName, callback);
+        } else {
+            // 和入队走同一个队列，否则可能先于对应的入队被处理
+            submit(new Submission(Submission.CANCEL, contextName, callback, null));
         }
     }
 
-    private void cancelToastLocked(int index) {
-        ToastRecord record = mToastQueue.get(index);
-        record.callback.hide();
-        mToastQueue.remove(index);
-        keepProcessAliveLocked(record.pid);
-        if (mToastQueue.size() > 0) {
-            // Show the next one. If the callback fails, this will remove
-            // it from the list, so don't assume that the list hasn't changed
-            // after this point.
-            showNextToastLocked();
+    private void doCancel(String contextName, IToastShower callback) {
+        if (!mScheduler.cancelToast(contextName, callback)) {
+            Log.w(TAG, "MoaToast already cancelled. contextName=" + contextName + " callback=" + callback);
         }
     }
 
+    /**
+     * 显示方在主线程上发现已经回调过show的Toast显示不了，见{@link ToastScheduler#dropToast}。
+     */
+    void dropToast(String contextName, IToastShower callback, int reason) {
+        mScheduler.dropToast(contextName, callback, reason);
+    }
 
-    private void showNextToastLocked() {
-        ToastRecord record = mToastQueue.get(0);
-        while (record != null) {
-            Log.e(TAG, "Show contextName=" + record.contextName + " callback=" + record.callback);
-            record.callback.show();
-            scheduleTimeoutLocked(record, false);
+    /**
+     * 用{@link ToastScheduler.Options#ready}为false入队的Toast的视图已经准备好，可以参与调度了。
+     */
+    public void markReady(String contextName, IToastShower callback) {
+        if (contextName == null || callback == null) {
             return;
         }
+        if (isMainThread()) {
+            // 对应的入队可能还在提交队列里
+            drainSubmissions();
+            mScheduler.markReady(contextName, callback);
+        } else {
+            submit(new Submission(Submission.READY, contextName, callback, null));
+        }
     }
 
-    private void cancelAllToastsLocked() {
-        ListIterator<ToastRecord> recordIterator = mToastQueue.listIterator();
-        while(recordIterator.hasNext()){
-            ToastRecord record = recordIterator.next();
-            record.callback.hide();
-            recordIterator.remove();
+    /**
+     * 取消一个context的所有Toast，包括正在显示的。
+     */
+    public void cancelToasts(String contextName) {
+        if (contextName == null) {
+            return;
+        }
+        if (isMainThread()) {
+            drainSubmissions();
+            mScheduler.cancelContextToasts(contextName);
+        } else {
+            submit(new Submission(Submission.CANCEL_CONTEXT, contextName, null, null));
         }
     }
 
-    private void scheduleTimeoutLocked(ToastRecord r, boolean immediate) {
-        Message m = Message.obtain(mHandler, MESSAGE_TIMEOUT, r);
-        long delay = immediate ? 0 : (r.duration == MoaToast.LENGTH_LONG ? LONG_DELAY : SHORT_DELAY);
-        mHandler.removeCallbacksAndMessages(r);
-        mHandler.sendMessageDelayed(m, delay);
+    /**
+     * 取消所有用{@link ToastScheduler.Options#tag}指定了这个tag的Toast，不分Activity。
+     */
+    public void cancelToastsByTag(Object tag) {
+        if (tag == null) {
+            return;
+        }
+        if (isMainThread()) {
+            drainSubmissions();
+            mScheduler.cancelTaggedToasts(tag);
+        } else {
+            Submission submission = new Submission(Submission.CANCEL_TAG, null, null, null);
+            submission.tag = tag;
+            submit(submission);
+        }
     }
 
-    private void keepProcessAliveLocked(int pid) {
-        int toastCount = 0; // toasts from this pid
-        ArrayList<ToastRecord> list = mToastQueue;
-        int N = list.size();
-        for (int i = 0; i < N; i++) {
-            ToastRecord r = list.get(i);
-            if (r.pid == pid) {
-                toastCount++;
-            }
+    public void cancelAllToasts() {
+        if (isMainThread()) {
+            drainSubmissions();
+            mScheduler.cancelAllToasts();
+        } else {
+            submit(new Submission(Submission.CANCEL_ALL, null, null, null));
+        }
+    }
+
+    /**
+     * context对应的Activity已经销毁，它还在队列里的Toast都不会再显示。只在主线程调用。
+     */
+    void purgeContext(String contextName) {
+        drainSubmissions();
+        int purged = mScheduler.purgeContext(contextName);
+        if (purged > 0) {
+            Log.i(TAG, "Purged " + purged + " toasts of destroyed context " + contextName);
         }
-        // TODO: 2016/12/21 弹出toast时要保证进程在前台：
-        // 类似于 mAm.setProcessForeground(mForegroundToken, pid, toastCount > 0);
     }
 
+    private void submit(Submission submission) {
+        mSubmissions.offer(submission);
+        scheduleDrain();
+    }
 
-    //---------------------内部辅助类-----------------------------\\
+    private void scheduleDrain() {
+        if (mDrainScheduled.compareAndSet(false, true)) {
+            mMainHandler.post(mDrain);
+        }
+    }
 
-    private final class WorkerHandler extends Handler {
-        @Override
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
-                case MESSAGE_TIMEOUT:
-                    handleTimeout((ToastRecord) msg.obj);
+    /**
+     * 只在主线程调用。
+     */
+    private void drainSubmissions() {
+        Submission submission;
+        while ((submission = mSubmissions.poll()) != null) {
+            switch (submission.op) {
+                case Submission.ENQUEUE:
+                    doEnqueue(submission.contextName, submission.callback, submission.options);
+                    break;
+                case Submission.CANCEL:
+                    doCancel(submission.contextName, submission.callback);
+                    break;
+                case Submission.CANCEL_CONTEXT:
+                    mScheduler.cancelContextToasts(submission.contextName);
+                    break;
+                case Submission.CANCEL_TAG:
+                    mScheduler.cancelTaggedToasts(submission.tag);
+                    break;
+                case Submission.CANCEL_ALL:
+                    mScheduler.cancelAllToasts();
+                    break;
+                case Submission.READY:
+                    mScheduler.markReady(submission.contextName, submission.callback);
                     break;
             }
         }
     }
 
-    private static final class ToastRecord {
-        final int pid;
+    private boolean isMainThread() {
+        return Looper.myLooper() == mMainHandler.getLooper();
+    }
+
+
+    /**
+     * 注册Toast流水线的指标回调，比如{@link ToastMetricsRecorder}。为null时关闭。
+     * 不论是否注册，抓trace时每个Toast的排队和显示都会输出为异步slice，见{@link ToastTrace}。
+     */
+    public void setMetrics(ToastMetrics metrics) {
+        mMetrics = metrics;
+        installMetrics();
+    }
+
+    /**
+     * 入队前按节流后的trace状态决定队列上要不要包一层trace，状态没变时只是一次时间比较。
+     */
+    private void updateTracing() {
+        if (ToastTrace.refreshAsyncEnabled(SystemClock.uptimeMillis())) {
+            installMetrics();
+        }
+    }
+
+    private synchronized void installMetrics() {
+        mScheduler.setMetrics(ToastTrace.wrapMetrics(mMetrics));
+    }
+
+    public ToastMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * 设置更高优先级的Toast入队时是否立即顶掉正在显示的Toast，默认关闭。
+     */
+    public void setPreemptEnabled(boolean enabled) {
+        mScheduler.setPreemptEnabled(enabled);
+    }
+
+    /**
+     * 设置同一时间最多显示几个Toast。大于1时是堆叠模式：多个Toast从toast_y_offset开始依次叠放，
+     * 各自计时，连续弹出很多Toast时能成倍加快消化，而每个Toast的显示时长不变。默认为1。
+     *
+     * @param maxVisible 1到{@link ToastScheduler#MAX_VISIBLE}
+     */
+    public void setMaxVisible(int maxVisible) {
+        mScheduler.setMaxVisible(maxVisible);
+    }
+
+    /**
+     * 设置Toast的显示时长策略，比如{@link AdaptiveTimingPolicy}会在排队较多时缩短每个Toast的显示时间。
+     *
+     * @param policy 为null时恢复成固定的2秒/3.5秒
+     */
+    public void setTimingPolicy(ToastScheduler.TimingPolicy policy) {
+        mScheduler.setTimingPolicy(policy);
+    }
+
+    /**
+     * 设置每个Activity的入队速率：最多连续入队burst个，之后每秒恢复perSecond个。
+     * 超出的Toast不会显示，enqueueToast的结果是{@link ToastScheduler#RESULT_REJECTED_QUOTA}，
+     * 并通过{@link ToastMetrics#onDropped}上报{@link ToastMetrics#DROP_QUOTA}。
+     */
+    public void setRateLimit(int burst, double perSecond) {
+        mScheduler.setRateLimit(burst, perSecond);
+    }
+
+    /**
+     * 设置整个进程所有Activity加起来的入队速率，超出时的结果是{@link ToastScheduler#RESULT_REJECTED_GLOBAL_QUOTA}。
+     */
+    public void setGlobalRateLimit(int burst, double perSecond) {
+        mScheduler.setGlobalRateLimit(burst, perSecond);
+    }
+
+    /**
+     * 设置等待中的Toast总数上限，超出时按evictionPolicy淘汰，默认不限。
+     *
+     * @param evictionPolicy {@link ToastScheduler#EVICT_DROP_OLDEST}或
+     *                       {@link ToastScheduler#EVICT_DROP_LOWEST_PRIORITY}
+     */
+    public void setCapacity(int capacity, int evictionPolicy) {
+        mScheduler.setCapacity(capacity, evictionPolicy);
+    }
+
+    /**
+     * 设置没有指定coalesceKey的MoaToast是否按文字合并：同一个Activity里文字相同的Toast
+     * 只保留一个，后来的替换先来的并重新计时。默认关闭。
+     */
+    public void setCoalesceIdenticalText(boolean coalesce) {
+        mCoalesceIdenticalText = coalesce;
+    }
+
+    public boolean isCoalesceIdenticalText() {
+        return mCoalesceIdenticalText;
+    }
+
+
+    //---------------------内部辅助类-----------------------------\\
+
+    /**
+     * 其他线程提交的一次入队或取消。
+     */
+    private static final class Submission extends ToastIngestQueue.Node {
+        static final int ENQUEUE = 0;
+        static final int CANCEL = 1;
+        static final int CANCEL_CONTEXT = 2;
+        static final int CANCEL_TAG = 3;
+        static final int CANCEL_ALL = 4;
+        static final int READY = 5;
+
+        final int op;
         final String contextName;
         final IToastShower callback;
-        int duration;
+        final ToastScheduler.Options options;
+        Object tag;
 
-        ToastRecord(int pid, String contextName, IToastShower callback, int duration) {
-            this.pid = pid;
+        Submission(int op, String contextName, IToastShower callback, ToastScheduler.Options options) {
+            this.op = op;
             this.contextName = contextName;
             this.callback = callback;
-            this.duration = duration;
+            this.options = options;
+        }
+    }
+
+    private static final class UptimeClock implements ToastScheduler.Clock {
+        @Override
+        public long uptimeMillis() {
+            return SystemClock.uptimeMillis();
         }
+    }
 
-        void update(int duration) {
-            this.duration = duration;
+    private static final class HandlerExecutor implements ToastScheduler.Executor {
+        private final Handler mHandler;
+
+        HandlerExecutor(Handler handler) {
+            mHandler = handler;
         }
 
-        void dump(PrintWriter pw, String prefix) {
-            pw.println(prefix + this);
+        @Override
+        public void schedule(Runnable task, long uptimeMillis) {
+            mHandler.postAtTime(task, uptimeMillis);
         }
 
         @Override
-        public final String toString() {
-            return "ToastRecord{"
-                    + Integer.toHexString(System.identityHashCode(this))
-                    + " contextName=" + contextName
-                    + " callback=" + callback
-                    + " duration=" + duration;
+        public void cancel(Runnable task) {
+            mHandler.removeCallbacks(task);
         }
     }
 }
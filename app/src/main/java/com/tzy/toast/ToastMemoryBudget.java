@@ -0,0 +1,70 @@
+package com.tzy.toast;
+
+import android.view.View;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 类描述：进程内所有MoaToast空闲时保留的视图和窗口的内存上限。
+ * <p/>
+ * 视图池里的视图和hide()之后保持预热的Dialog都是为了下一个Toast更快，但每个Activity都各有一份，
+ * 页面多了以后总量不可控。这里按像素估算它们占用的字节数（一块ARGB_8888的缓冲区），
+ * 要保留之前先{@link #tryRetain}，超出上限时就不保留，直接丢给GC或dismiss，下次用时再创建。
+ */
+final class ToastMemoryBudget {
+    static final long DEFAULT_LIMIT_BYTES = 2 * 1024 * 1024;
+    // 还没布局过的视图按这个大小估算
+    private static final long MIN_VIEW_BYTES = 16 * 1024;
+    // 一个窗口除了缓冲区以外的开销：ViewRootImpl、PhoneWindow、decor等
+    static final long WINDOW_OVERHEAD_BYTES = 32 * 1024;
+
+    private static final AtomicLong sRetained = new AtomicLong();
+    private static volatile long sLimit = DEFAULT_LIMIT_BYTES;
+
+    private ToastMemoryBudget() {
+    }
+
+    /**
+     * 设置上限，为0时空闲的视图和窗口一律不保留。已经保留的不受影响，归还后才按新的上限计算。
+     */
+    static void setLimit(long limitBytes) {
+        sLimit = Math.max(0, limitBytes);
+    }
+
+    static long getLimit() {
+        return sLimit;
+    }
+
+    static long getRetainedBytes() {
+        return sRetained.get();
+    }
+
+    /**
+     * @return 是否还有余量，返回true时调用方必须在不再保留时{@link #release}同样的字节数
+     */
+    static boolean tryRetain(long bytes) {
+        while (true) {
+            long retained = sRetained.get();
+            if (retained + bytes > sLimit) {
+                return false;
+            }
+            if (sRetained.compareAndSet(retained, retained + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    static void release(long bytes) {
+        if (bytes > 0) {
+            sRetained.addAndGet(-bytes);
+        }
+    }
+
+    /**
+     * 估算view保留的字节数，按它上一次布局的大小。
+     */
+    static long estimate(View view) {
+        long bytes = (long) view.getWidth() * view.getHeight() * 4;
+        return Math.max(bytes, MIN_VIEW_BYTES);
+    }
+}
@@ -0,0 +1,69 @@
+package com.tzy.toast;
+
+/**
+ * 类描述：Toast流水线的指标回调。通过{@link ToastManager#setMetrics(ToastMetrics)}注册，
+ * 没有注册时ToastScheduler里的埋点都只是一次null判断；只有在抓trace时ToastManager才会在外面包一层{@link ToastTrace}。
+ * <p/>
+ * 除了{@link #onShowCost}以外的回调都在ToastScheduler持有队列锁时调用，实现必须很快、不能阻塞，
+ * 也不应该分配对象，可以直接用{@link ToastMetricsRecorder}。时间单位除特别说明外都是毫秒。
+ */
+public interface ToastMetrics {
+    /**
+     * 事件不对应队列中的某条记录时使用的id，比如入队时就被拒绝的Toast。
+     */
+    long ID_NONE = -1;
+
+    /** 超过了context或整个进程的入队速率限制，入队时被拒绝 */
+    int DROP_QUOTA = 0;
+    /** 还没显示就被取消了 */
+    int DROP_CANCELLED = 1;
+    /** 被同一个coalesceKey的新Toast替换掉了 */
+    int DROP_COALESCED = 2;
+    /** 轮到显示时Activity已经在finish，没有显示；Activity销毁时还在排队的记录也按这个原因移除 */
+    int DROP_ACTIVITY_FINISHING = 3;
+    /** 在队列中等待超过了maxAge，没有显示 */
+    int DROP_EXPIRED = 4;
+    /** 队列容量已满，被淘汰或入队时被拒绝 */
+    int DROP_EVICTED = 5;
+    /** 正在显示时被更高优先级的Toast顶掉了，这时同一个记录已经先上报过onHidden */
+    int DROP_PREEMPTED = 6;
+    /** 所属的Activity已经被回收，记录被移出队列 */
+    int DROP_OWNER_COLLECTED = 7;
+
+    int DROP_REASON_COUNT = 8;
+
+    /**
+     * 新记录进入队列。
+     *
+     * @param queueDepth 入队后的队列长度
+     */
+    void onEnqueued(long recordId, int queueDepth);
+
+    /**
+     * 记录第一次被显示。队列在回调show之前会检查Activity是否在finish；只有回调之后、主线程真正显示之前才开始finish的，
+     * 同一个记录之后不再有onHidden，而是以{@link #DROP_ACTIVITY_FINISHING}上报onDropped。
+     *
+     * @param waitMillis 从入队到显示的时间
+     */
+    void onShown(long recordId, long waitMillis, int queueDepth);
+
+    /**
+     * 显示过的记录被隐藏（超时、取消或被抢占）并移出队列。
+     *
+     * @param visibleMillis 从显示到隐藏的时间
+     * @param queueDepth 移出后的队列长度
+     */
+    void onHidden(long recordId, long visibleMillis, int queueDepth);
+
+    /**
+     * Toast没有被显示就被丢弃了。唯一的例外是{@link #DROP_PREEMPTED}，记录显示过，在onHidden之后上报。
+     *
+     * @param reason DROP_开头的常量
+     */
+    void onDropped(long recordId, int reason);
+
+    /**
+     * 主线程上一次handleShow的耗时，单位是纳秒。
+     */
+    void onShowCost(long nanos);
+}
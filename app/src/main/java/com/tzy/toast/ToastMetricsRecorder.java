@@ -0,0 +1,118 @@
+package com.tzy.toast;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 类描述：{@link ToastMetrics}的默认实现，用计数器、直方图和队列长度的gauge记录所有事件，
+ * 记录时不分配对象。读取可以在任意线程进行，读到的是近似一致的快照。
+ */
+public class ToastMetricsRecorder implements ToastMetrics {
+    private final AtomicLong mEnqueued = new AtomicLong();
+    private final AtomicLong mShown = new AtomicLong();
+    private final AtomicLongArray mDropped = new AtomicLongArray(DROP_REASON_COUNT);
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+
+    private final LatencyHistogram mWaitMillis = new LatencyHistogram();
+    private final LatencyHistogram mVisibleMillis = new LatencyHistogram();
+    private final LatencyHistogram mShowCostNanos = new LatencyHistogram();
+
+    @Override
+    public void onEnqueued(long recordId, int queueDepth) {
+        mEnqueued.incrementAndGet();
+        updateDepth(queueDepth);
+    }
+
+    @Override
+    public void onShown(long recordId, long waitMillis, int queueDepth) {
+        mShown.incrementAndGet();
+        mWaitMillis.record(waitMillis);
+        updateDepth(queueDepth);
+    }
+
+    @Override
+    public void onHidden(long recordId, long visibleMillis, int queueDepth) {
+        mVisibleMillis.record(visibleMillis);
+        updateDepth(queueDepth);
+    }
+
+    @Override
+    public void onDropped(long recordId, int reason) {
+        if (reason >= 0 && reason < DROP_REASON_COUNT) {
+            mDropped.incrementAndGet(reason);
+        }
+    }
+
+    @Override
+    public void onShowCost(long nanos) {
+        mShowCostNanos.record(nanos);
+    }
+
+    private void updateDepth(int queueDepth) {
+        mQueueDepth.set(queueDepth);
+        int max;
+        while (queueDepth > (max = mMaxQueueDepth.get())) {
+            if (mMaxQueueDepth.compareAndSet(max, queueDepth)) {
+                break;
+            }
+        }
+    }
+
+    public long getEnqueuedCount() {
+        return mEnqueued.get();
+    }
+
+    public long getShownCount() {
+        return mShown.get();
+    }
+
+    /**
+     * @param reason ToastMetrics中DROP_开头的常量
+     */
+    public long getDroppedCount(int reason) {
+        return mDropped.get(reason);
+    }
+
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    /**
+     * 从入队到显示的等待时间，毫秒。
+     */
+    public LatencyHistogram getWaitMillis() {
+        return mWaitMillis;
+    }
+
+    /**
+     * 从显示到隐藏的时间，毫秒。
+     */
+    public LatencyHistogram getVisibleMillis() {
+        return mVisibleMillis;
+    }
+
+    /**
+     * 主线程上handleShow的耗时，纳秒。
+     */
+    public LatencyHistogram getShowCostNanos() {
+        return mShowCostNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "ToastMetrics{enqueued=" + mEnqueued.get()
+                + " shown=" + mShown.get()
+                + " dropped(quota/cancelled/coalesced/finishing/expired/evicted/preempted/collected)=" + mDropped
+                + " depth=" + mQueueDepth.get() + "/" + mMaxQueueDepth.get()
+                + " wait p50/p99=" + mWaitMillis.getValueAtPercentile(50) + "/" + mWaitMillis.getValueAtPercentile(99) + "ms"
+                + " showCost p50/p99=" + mShowCostNanos.getValueAtPercentile(50) / 1000
+                + "/" + mShowCostNanos.getValueAtPercentile(99) / 1000 + "us"
+                + "}";
+    }
+}
@@ -0,0 +1,148 @@
+package com.tzy.toast;
+
+import android.app.Activity;
+import android.os.Build;
+import android.util.Log;
+import android.view.Gravity;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewParent;
+import android.view.WindowManager;
+import android.widget.FrameLayout;
+
+/**
+ * 类描述：把Toast作为子View加到Activity的DecorView上，不创建窗口。
+ * <p/>
+ * DecorView本身是个FrameLayout，这里在它的最上层加一个铺满的FrameLayout作为容器，Toast按gravity
+ * 摆在容器里，x、y的含义和窗口的一样：靠边时是离那条边的距离，居中时是相对中心的偏移。容器和Toast都不可点击，
+ * 触摸事件会穿过去交给下面的内容。显示和隐藏只是addView/removeView，没有WindowManager的跨进程调用，
+ * 也没有额外的Surface；代价是Toast只能显示在这个Activity的内容上面，盖不住它弹出的Dialog。
+ * <p/>
+ * 所有槽位共用一个容器，退出中的Toast和新显示的Toast同时在容器里，所有方法都必须在主线程调用。
+ */
+final class ToastOverlay implements ToastRenderer, ToastAnimator.ExitListener {
+    private static final String TAG = "ToastOverlay";
+
+    private final Activity mActivity;
+    private final Callback mCallback;
+    private FrameLayout mContainer;
+
+    ToastOverlay(Activity activity, Callback callback) {
+        mActivity = activity;
+        mCallback = callback;
+    }
+
+    @Override
+    public void show(View view, WindowManager.LayoutParams params) {
+        FrameLayout container = getContainer();
+        if (container == null) {
+            return;
+        }
+        FrameLayout.LayoutParams lp = new FrameLayout.LayoutParams(
+                ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT, params.gravity);
+        // horizontalMargin和verticalMargin和窗口一样是占容器宽高的比例
+        int x = params.x + (int) (params.horizontalMargin * container.getWidth());
+        int y = params.y + (int) (params.verticalMargin * container.getHeight());
+        float translationX = 0;
+        float translationY = 0;
+        switch (params.gravity & Gravity.HORIZONTAL_GRAVITY_MASK) {
+            case Gravity.LEFT:
+                lp.leftMargin = x;
+                break;
+            case Gravity.RIGHT:
+                lp.rightMargin = x;
+                break;
+            default:
+                translationX = x;
+                break;
+        }
+        switch (params.gravity & Gravity.VERTICAL_GRAVITY_MASK) {
+            case Gravity.TOP:
+                lp.topMargin = y;
+                break;
+            case Gravity.BOTTOM:
+                lp.bottomMargin = y;
+                break;
+            default:
+                translationY = y;
+                break;
+        }
+        view.setTranslationX(translationX);
+        view.setTranslationY(translationY);
+
+        ViewParent parent = view.getParent();
+        if (parent == container) {
+            container.updateViewLayout(view, lp);
+        } else {
+            if (parent instanceof ViewGroup) {
+                ((ViewGroup) parent).removeView(view);
+            }
+            container.addView(view, lp);
+        }
+        ToastAnimator.enter(view);
+    }
+
+    @Override
+    public boolean hide(View view) {
+        if (mContainer != null && view.getParent() == mContainer
+                && !mActivity.isFinishing() && ToastAnimator.exit(view, this)) {
+            return true;
+        }
+        remove(view);
+        return false;
+    }
+
+    @Override
+    public void onExitEnd(View view) {
+        remove(view);
+        mCallback.onViewRemoved(view);
+    }
+
+    private void remove(View view) {
+        if (mContainer != null && view.getParent() == mContainer) {
+            mContainer.removeView(view);
+        }
+        // 视图会回到视图池，下次可能交给Dialog显示
+        view.setTranslationX(0);
+        view.setTranslationY(0);
+    }
+
+    @Override
+    public void dismiss() {
+        if (mContainer == null) {
+            return;
+        }
+        // 正在退出的视图不再回调，整个池都会被清掉
+        for (int i = 0; i < mContainer.getChildCount(); i++) {
+            ToastAnimator.cancel(mContainer.getChildAt(i));
+        }
+        mContainer.removeAllViews();
+        ViewParent parent = mContainer.getParent();
+        if (parent instanceof ViewGroup) {
+            ((ViewGroup) parent).removeView(mContainer);
+        }
+        mContainer = null;
+    }
+
+    private FrameLayout getContainer() {
+        if (mContainer != null) {
+            return mContainer;
+        }
+        View decor = mActivity.getWindow().getDecorView();
+        if (!(decor instanceof ViewGroup)) {
+            Log.w(TAG, "Decor view is not a ViewGroup: " + decor);
+            return null;
+        }
+        FrameLayout container = new FrameLayout(mActivity);
+        container.setClickable(false);
+        container.setFocusable(false);
+        if (Build.VERSION.SDK_INT >= 16) {
+            container.setImportantForAccessibility(View.IMPORTANT_FOR_ACCESSIBILITY_NO);
+        }
+        ((ViewGroup) decor).addView(container, new FrameLayout.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+        if (MoaToast.localLOGV) Log.v(TAG, "create overlay for " + mActivity);
+        mContainer = container;
+        return container;
+    }
+}
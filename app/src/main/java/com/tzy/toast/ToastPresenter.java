@@ -0,0 +1,399 @@
+package com.tzy.toast;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.PixelFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Gravity;
+import android.view.View;
+import android.view.WindowManager;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityManager;
+import android.widget.TextView;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * 类描述：一个Activity上所有MoaToast共用的显示机制，由{@link ToastHost}创建。
+ * <p/>
+ * 原来每个MoaToast的TN都带着自己的Handler、WindowManager.LayoutParams和两个Runnable，
+ * 每makeText一次就多一套。现在TN只剩下这个Toast自己的位置参数，队列回调show/hide时只是把(TN, 槽位)
+ * 记到这里的命令队列，由一个共用的Runnable在主线程上按顺序处理，同一个Activity的Toast共用一个Handler和一份LayoutParams。
+ * 命令队列是一个可扩容的环形数组，稳定状态下show/hide不分配对象。
+ * <p/>
+ * 全局队列里的记录强引用TN，TN强引用这里，所以这里只弱引用ToastHost，不会让Activity在排队期间无法回收。
+ * 正在显示的视图按槽位记在这里，除了命令队列以外的状态都只在主线程访问。
+ * <p/>
+ * 隐藏时视图可能还在播放退出动画，这时槽位已经空出来给下一个Toast，视图要等{@link #onViewRemoved}才回到视图池。
+ */
+final class ToastPresenter implements ToastRenderer.Callback {
+    private static final int INITIAL_COMMAND_CAPACITY = 8;
+    // mCommandSlots里表示隐藏的值
+    private static final int HIDE = -1;
+
+    private final WeakReference<ToastHost> mHost;
+    // 固定用主线程的Looper，这样在没有Looper的后台线程上也能创建和显示Toast
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drainCommands();
+        }
+    };
+    private final WindowManager.LayoutParams mParams = new WindowManager.LayoutParams();
+
+    // 以下由mCommandLock保护：待处理的命令，环形数组，槽位为HIDE时表示隐藏
+    private final Object mCommandLock = new Object();
+    private MoaToast.TN[] mCommandToasts = new MoaToast.TN[INITIAL_COMMAND_CAPACITY];
+    private int[] mCommandSlots = new int[INITIAL_COMMAND_CAPACITY];
+    private int mCommandHead;
+    private int mCommandCount;
+    private boolean mDrainPosted;
+
+    // 以下只在主线程访问：每个槽位上正在显示的Toast、它的视图和渲染方式
+    private final MoaToast.TN[] mShownToasts = new MoaToast.TN[ToastScheduler.MAX_VISIBLE];
+    private final View[] mShownViews = new View[ToastScheduler.MAX_VISIBLE];
+    private final int[] mShownRenderers = new int[ToastScheduler.MAX_VISIBLE];
+
+    ToastPresenter(ToastHost host) {
+        mHost = new WeakReference<>(host);
+        // XXX This should be changed to use a Dialog, with a Theme.MoaToast
+        // defined that sets up the layout params appropriately.
+        final WindowManager.LayoutParams params = mParams;
+        params.height = WindowManager.LayoutParams.WRAP_CONTENT;
+        params.width = WindowManager.LayoutParams.WRAP_CONTENT;
+        params.format = PixelFormat.TRANSLUCENT;
+        //窗口不带动画，动画在Activity关闭时，有点问题；进入和退出动画由ToastAnimator做在视图上
+        //params.windowAnimations = android.R.style.Animation_Toast;
+        //params.type = WindowManager.LayoutParams.TYPE_TOAST;
+        params.setTitle("MoaToast");
+        params.flags = WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON
+                | WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE
+                | WindowManager.LayoutParams.FLAG_NOT_TOUCHABLE;
+    }
+
+    /**
+     * 同一个Activity的所有Toast共用，每次显示前按那个Toast的位置参数重新填写。
+     */
+    WindowManager.LayoutParams getParams() {
+        return mParams;
+    }
+
+    /**
+     * schedule handleShow into the right thread
+     */
+    void show(MoaToast.TN toast, int slot) {
+        post(toast, slot);
+    }
+
+    /**
+     * schedule handleHide into the right thread
+     */
+    void hide(MoaToast.TN toast) {
+        post(toast, HIDE);
+    }
+
+    private void post(MoaToast.TN toast, int slot) {
+        synchronized (mCommandLock) {
+            if (mCommandCount == mCommandToasts.length) {
+                growCommandsLocked();
+            }
+            int tail = (mCommandHead + mCommandCount) & (mCommandToasts.length - 1);
+            mCommandToasts[tail] = toast;
+            mCommandSlots[tail] = slot;
+            mCommandCount++;
+            if (mDrainPosted) {
+                return;
+            }
+            mDrainPosted = true;
+        }
+        mHandler.post(mDrain);
+    }
+
+    private void growCommandsLocked() {
+        int capacity = mCommandToasts.length;
+        MoaToast.TN[] toasts = new MoaToast.TN[capacity * 2];
+        int[] slots = new int[capacity * 2];
+        for (int i = 0; i < mCommandCount; i++) {
+            int index = (mCommandHead + i) & (capacity - 1);
+            toasts[i] = mCommandToasts[index];
+            slots[i] = mCommandSlots[index];
+        }
+        mCommandToasts = toasts;
+        mCommandSlots = slots;
+        mCommandHead = 0;
+    }
+
+    /**
+     * 按提交的顺序处理所有命令，处理过程中新提交的也在这一次里处理掉。
+     */
+    private void drainCommands() {
+        ToastHost attachHost = mHost.get();
+        if (attachHost != null) {
+            // 创建时可能不在主线程或者还没有decorView，到这里一定在主线程
+            attachHost.attachToDecor();
+        }
+        while (true) {
+            MoaToast.TN toast;
+            int slot;
+            synchronized (mCommandLock) {
+                if (mCommandCount == 0) {
+                    mDrainPosted = false;
+                    return;
+                }
+                toast = mCommandToasts[mCommandHead];
+                slot = mCommandSlots[mCommandHead];
+                mCommandToasts[mCommandHead] = null;
+                mCommandHead = (mCommandHead + 1) & (mCommandToasts.length - 1);
+                mCommandCount--;
+            }
+            if (slot == HIDE) {
+                ToastTrace.beginSection("MoaToast.hide");
+                try {
+                    View exiting = handleHide(toast);
+                    // makeText的视图回到视图池，setView设置的视图不受影响
+                    // Don't do this in handleHide() because it is also invoked by handleShow()
+                    ToastHost host = mHost.get();
+                    View nextView = host != null ? host.unstageView(toast) : null;
+                    // 还在退出的视图等onViewRemoved再放回去
+                    if (nextView != null && nextView != exiting) {
+                        host.getViewPool().release(nextView, toast);
+                    }
+                } finally {
+                    ToastTrace.endSection();
+                }
+            } else {
+                ToastTrace.beginSection("MoaToast.show");
+                try {
+                    handleShow(toast, slot);
+                } finally {
+                    ToastTrace.endSection();
+                }
+            }
+        }
+    }
+
+    /**
+     *
+     * 这里是弹出一个Toast的具体实现。
+     * 最开始，是采用与原生Toast一样的实现方式，但是经过测试，发现原生的实现方式
+     * 在MIUI8上无效，即无法弹出Toast；在CM系统中，如果自定义的Toast和原生Toast同时弹出，会出现奔溃。
+     * 所以无法采用原生的方案来实现Toast。现在改为用Dialog来实现，但是Dialog的生命周期是绑定于Activity的，
+     * 也就是说该Toast的上下文对象只能是Activity,Service或者 Application等其他上下文对象不能使用该Toast.
+     *
+     * */
+    private void handleShow(MoaToast.TN toast, int slot) {
+        ToastHost host = mHost.get();
+        // 排队期间Activity已经被回收，或者已经被取消
+        View nextView = host != null ? host.getStagedView(toast) : null;
+        int shownSlot = findShownSlot(toast);
+        View view = shownSlot >= 0 ? mShownViews[shownSlot] : null;
+        if (MoaToast.localLOGV) Log.v(MoaToast.TAG, "HANDLE SHOW: " + toast + " mView=" + view
+                + " mNextView=" + nextView);
+        if (nextView == null || view == nextView) {
+            return;
+        }
+        ToastMetrics metrics = ToastManager.getInstance().getMetrics();
+        long startNanos = metrics != null ? System.nanoTime() : 0;
+        // remove the old view if necessary
+        handleHide(toast);
+        if (mShownToasts[slot] != null) {
+            // 槽位上一个Toast的隐藏命令一定在这之前，这里只是以防万一
+            handleHide(mShownToasts[slot]);
+        }
+        Activity context = (Activity) nextView.getContext();
+        if (context.isFinishing()) {
+            // 队列在回调show之前已经检查过，这里是之后才开始finish的。让队列按没显示过移除这条记录并上报，
+            // 槽位马上给下一个，不用空等这个Toast的时长
+            ToastManager.getInstance().dropToast(host.getContextName(), toast,
+                    ToastMetrics.DROP_ACTIVITY_FINISHING);
+            return;
+        }
+
+        // We can resolve the Gravity here by using the Locale for getting
+        // the layout direction
+        final Configuration config = context.getResources().getConfiguration();
+        final int gravity;
+        if (Build.VERSION.SDK_INT >= 17) {
+            gravity = Gravity.getAbsoluteGravity(toast.mGravity, config.getLayoutDirection());
+        } else {
+            gravity = toast.mGravity;
+        }
+        // LayoutParams是共用的，上一个Toast设置过的字段都要重新写
+        mParams.gravity = gravity;
+        mParams.horizontalWeight =
+                (gravity & Gravity.HORIZONTAL_GRAVITY_MASK) == Gravity.FILL_HORIZONTAL ? 1.0f : 0;
+        mParams.verticalWeight =
+                (gravity & Gravity.VERTICAL_GRAVITY_MASK) == Gravity.FILL_VERTICAL ? 1.0f : 0;
+        mParams.x = toast.mX;
+        mParams.y = toast.mY + getStackOffset(context, nextView, slot);
+        mParams.verticalMargin = toast.mVerticalMargin;
+        mParams.horizontalMargin = toast.mHorizontalMargin;
+        int rendererType = toast.mRenderer;
+        ToastRenderer renderer = host.getRenderer(rendererType, slot);
+        if (MoaToast.localLOGV) Log.v(MoaToast.TAG, "renderer= " + renderer + " show in " + toast);
+
+        //Dialog方式下同一个Activity上同一个槽位的Toast共用一个窗口，这里只替换content和LayoutParams
+        renderer.show(nextView, mParams);
+        mShownToasts[slot] = toast;
+        mShownViews[slot] = nextView;
+        mShownRenderers[slot] = rendererType;
+
+        trySendAccessibilityEvent(nextView);
+        if (metrics != null) {
+            metrics.onShowCost(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * @return 正在播放退出动画的视图，已经直接移除时返回null
+     */
+    private View handleHide(MoaToast.TN toast) {
+        int slot = findShownSlot(toast);
+        if (MoaToast.localLOGV) Log.v(MoaToast.TAG, "HANDLE HIDE: " + toast + " slot=" + slot);
+        if (slot < 0) {
+            return null;
+        }
+        View view = mShownViews[slot];
+        mShownToasts[slot] = null;
+        mShownViews[slot] = null;
+        //Dialog窗口只是隐藏，空闲一段时间或者Activity结束时才会销毁；overlay方式下只是移除视图
+        ToastHost host = mHost.get();
+        if (host != null && host.getRenderer(mShownRenderers[slot], slot).hide(view)) {
+            return view;
+        }
+        return null;
+    }
+
+    /**
+     * 退出动画结束，视图已经从窗口或者DecorView上移除。owner又把它提交显示了就留着，否则放回视图池。
+     */
+    @Override
+    public void onViewRemoved(View view) {
+        ToastHost host = mHost.get();
+        ToastViewPool.ViewHolder holder = ToastViewPool.holderOf(view);
+        if (host == null || holder == null) {
+            return;
+        }
+        Object owner = holder.owner;
+        if (owner != null && host.getStagedView(owner) != view) {
+            host.getViewPool().release(view, owner);
+        }
+    }
+
+    private int findShownSlot(MoaToast.TN toast) {
+        for (int slot = 0; slot < mShownToasts.length; slot++) {
+            if (mShownToasts[slot] == toast) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 堆叠模式下第slot个Toast离第一个的距离。不论gravity是TOP、BOTTOM还是CENTER，
+     * y增大都是离开停靠的那条边，所以后面的Toast总是往屏幕中间方向叠。
+     * 下面每个槽位按正在那里显示的视图的实际高度累加，槽位空着时按view自己的高度占位。
+     */
+    private int getStackOffset(Context context, View view, int slot) {
+        if (slot == 0) {
+            return 0;
+        }
+        int spacing = ToastResources.getStackSpacing(context);
+        int offset = 0;
+        int ownHeight = -1;
+        for (int i = 0; i < slot; i++) {
+            View below = mShownViews[i];
+            int height = below != null ? getHeight(below) : 0;
+            if (height == 0) {
+                if (ownHeight < 0) {
+                    ownHeight = getHeight(view);
+                }
+                height = ownHeight;
+            }
+            offset += height + spacing;
+        }
+        return offset;
+    }
+
+    private static int getHeight(View view) {
+        int height = view.getHeight();
+        if (height == 0) {
+            height = getPrefetchedHeight(view);
+        }
+        if (height == 0) {
+            // 还没布局过，后台也还没排版好，只能在这里量一下
+            int unspecified = View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED);
+            view.measure(unspecified, unspecified);
+            height = view.getMeasuredHeight();
+        }
+        return height;
+    }
+
+    /**
+     * @return 按后台排版好的文字尺寸算出的视图高度，没有缓存时返回0
+     */
+    private static int getPrefetchedHeight(View view) {
+        ToastViewPool.ViewHolder holder = ToastViewPool.holderOf(view);
+        if (holder == null || holder.message == null) {
+            return 0;
+        }
+        TextView tv = holder.message;
+        ToastTextPrefetcher.Measured measured = ToastTextPrefetcher.get(tv, tv.getText());
+        if (measured == null) {
+            return 0;
+        }
+        return measured.height + tv.getTotalPaddingTop() + tv.getTotalPaddingBottom()
+                + view.getPaddingTop() + view.getPaddingBottom();
+    }
+
+    private static void trySendAccessibilityEvent(View view) {
+        AccessibilityManager accessibilityManager =
+                (AccessibilityManager) view.getContext().getSystemService(Context.ACCESSIBILITY_SERVICE);
+        if (!accessibilityManager.isEnabled()) {
+            return;
+        }
+        ToastTrace.beginSection("MoaToast.accessibility");
+        try {
+            // treat toasts as notifications since they are used to
+            // announce a transient piece of information to the user
+            AccessibilityEvent event = AccessibilityEvent.obtain(
+                    AccessibilityEvent.TYPE_NOTIFICATION_STATE_CHANGED);
+            event.setClassName(MoaToast.class.getName());
+            event.setPackageName(view.getContext().getPackageName());
+            view.dispatchPopulateAccessibilityEvent(event);
+            accessibilityManager.sendAccessibilityEvent(event);
+        } finally {
+            ToastTrace.endSection();
+        }
+    }
+
+    /**
+     * @return Activity是否已经在finish，可以在任意线程调用。Activity已经被回收时返回false，由队列按owner清理
+     */
+    boolean isHostFinishing() {
+        ToastHost host = mHost.get();
+        return host != null && host.isFinishing();
+    }
+
+    /**
+     * Activity销毁时调用，渲染器已经被ToastHost释放，这里只丢掉还没处理的命令和显示状态。
+     */
+    void release() {
+        synchronized (mCommandLock) {
+            for (int i = 0; i < mCommandToasts.length; i++) {
+                mCommandToasts[i] = null;
+            }
+            mCommandHead = 0;
+            mCommandCount = 0;
+        }
+        for (int slot = 0; slot < mShownToasts.length; slot++) {
+            mShownToasts[slot] = null;
+            mShownViews[slot] = null;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.tzy.toast;
+
+import android.view.View;
+import android.view.WindowManager;
+
+/**
+ * 类描述：把Toast的视图真正显示到屏幕上的方式，{@link ToastPresenter}只负责决定显示什么、在哪里显示。
+ * <p/>
+ * 现在有两种实现：{@link ToastWindow}为每个槽位开一个Dialog窗口，兼容性最好；
+ * {@link ToastOverlay}直接把视图加到Activity的DecorView上，不需要额外的窗口和Surface，
+ * 也不用经过WindowManager。每个Activity的实例由{@link ToastHost}管理，所有方法都在主线程调用。
+ * <p/>
+ * 两种实现都用{@link ToastAnimator}做进入和退出动画。退出中的视图还留在容器里，和下一个Toast的进入同时进行，
+ * 动画结束后才真正移除并回调{@link Callback}。
+ */
+interface ToastRenderer {
+    int DIALOG = 0;
+    int OVERLAY = 1;
+
+    /**
+     * 退出动画结束、视图已经被移除时的回调。
+     */
+    interface Callback {
+        void onViewRemoved(View view);
+    }
+
+    /**
+     * 显示view。params里的gravity、x、y和margin决定位置，含义和WindowManager.LayoutParams一致。
+     * view正在退出时打断退出动画，重新进入。
+     */
+    void show(View view, WindowManager.LayoutParams params);
+
+    /**
+     * 隐藏view，view已经不在显示时什么也不做。
+     *
+     * @return 为true时view正在播放退出动画，之后会回调{@link Callback#onViewRemoved}；
+     * 为false时view已经被移除（或者本来就不在显示），不会再回调
+     */
+    boolean hide(View view);
+
+    /**
+     * 释放所有资源，Activity销毁时调用。
+     */
+    void dismiss();
+}
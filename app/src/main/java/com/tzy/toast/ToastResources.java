@@ -0,0 +1,146 @@
+package com.tzy.toast;
+
+import android.content.ComponentCallbacks;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.util.DisplayMetrics;
+
+import java.util.Locale;
+
+/**
+ * 类描述：进程级的资源缓存，缓存MoaToast用到的系统资源id和由它们算出来的值。
+ * <p/>
+ * getIdentifier是按字符串查找资源的，很慢，原来每次new MoaToast和makeText都要调用。
+ * 资源id在进程内不会变，只查一次；toast_y_offset的像素值和屏幕密度、方向、语言有关，
+ * 按这几项做key缓存，配置变化时失效。可以在Application启动时调用{@link #preload(Context)}提前填好。
+ */
+final class ToastResources {
+    private static final String RESOURCE_DIMEN_TYPE = "dimen";
+    private static final String RESOURCE_LAYOUT_TYPE = "layout";
+    private static final String RESOURCE_DEF_PACKAGE = "android";
+
+    private static volatile int sYOffsetResId;
+    private static volatile int sLayoutResId;
+    private static volatile Snapshot sSnapshot;
+    private static boolean sCallbacksRegistered;
+
+    private ToastResources() {
+    }
+
+    /**
+     * 提前解析资源id并计算当前配置下的值，之后创建Toast时不再做任何按字符串的资源查找。
+     */
+    static void preload(Context context) {
+        getNotificationLayoutId(context);
+        getYOffset(context);
+    }
+
+    /**
+     * @return transient_notification布局的id，优先使用系统的布局
+     */
+    static int getNotificationLayoutId(Context context) {
+        int layoutId = sLayoutResId;
+        if (layoutId == 0) {
+            layoutId = context.getResources().getIdentifier("transient_notification", RESOURCE_LAYOUT_TYPE, RESOURCE_DEF_PACKAGE);
+            if (layoutId <= 0) {//系统厂商如果把名字改了的话，有可能找不到系统资源，则用自带的资源
+                layoutId = R.layout.transient_notification;
+            }
+            sLayoutResId = layoutId;
+        }
+        return layoutId;
+    }
+
+    /**
+     * @return 当前配置下toast_y_offset的像素值
+     */
+    static int getYOffset(Context context) {
+        return getSnapshot(context).yOffset;
+    }
+
+    /**
+     * @return 当前配置下堆叠模式里相邻两个Toast的间距，像素
+     */
+    static int getStackSpacing(Context context) {
+        return getSnapshot(context).stackSpacing;
+    }
+
+    private static Snapshot getSnapshot(Context context) {
+        Resources resources = context.getResources();
+        Configuration config = resources.getConfiguration();
+        DisplayMetrics metrics = resources.getDisplayMetrics();
+        Snapshot snapshot = sSnapshot;
+        if (snapshot != null && snapshot.matches(config, metrics)) {
+            return snapshot;
+        }
+
+        int yOffsetResId = sYOffsetResId;
+        if (yOffsetResId == 0) {
+            yOffsetResId = resources.getIdentifier("toast_y_offset", RESOURCE_DIMEN_TYPE, RESOURCE_DEF_PACKAGE);
+            if (yOffsetResId <= 0) {//系统厂商如果把名字改了的话，有可能找不到系统资源，则用自带的资源
+                yOffsetResId = R.dimen.toast_y_offset;
+            }
+            sYOffsetResId = yOffsetResId;
+        }
+        registerCallbacks(context);
+        snapshot = new Snapshot(config, metrics, resources.getDimensionPixelSize(yOffsetResId),
+                resources.getDimensionPixelSize(R.dimen.toast_stack_spacing));
+        sSnapshot = snapshot;
+        return snapshot;
+    }
+
+    /**
+     * 配置变化时丢掉和配置相关的值，资源id不受影响。
+     */
+    static void invalidate() {
+        sSnapshot = null;
+    }
+
+    private static synchronized void registerCallbacks(Context context) {
+        if (sCallbacksRegistered) {
+            return;
+        }
+        Context appContext = context.getApplicationContext();
+        if (appContext == null) {
+            return;
+        }
+        sCallbacksRegistered = true;
+        appContext.registerComponentCallbacks(new ComponentCallbacks() {
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+                invalidate();
+            }
+
+            @Override
+            public void onLowMemory() {
+                ToastTextPrefetcher.clear();
+            }
+        });
+    }
+
+    /**
+     * 某个配置下算出来的值。除了监听配置变化，取值时也会比较key，
+     * 因为Activity可能有自己的配置（比如固定了方向），和Application的不一样。
+     */
+    private static final class Snapshot {
+        final int densityDpi;
+        final int orientation;
+        final Locale locale;
+        final int yOffset;
+        final int stackSpacing;
+
+        Snapshot(Configuration config, DisplayMetrics metrics, int yOffset, int stackSpacing) {
+            this.densityDpi = metrics.densityDpi;
+            this.orientation = config.orientation;
+            this.locale = config.locale;
+            this.yOffset = yOffset;
+            this.stackSpacing = stackSpacing;
+        }
+
+        boolean matches(Configuration config, DisplayMetrics metrics) {
+            return densityDpi == metrics.densityDpi
+                    && orientation == config.orientation
+                    && (locale == null ? config.locale == null : locale.equals(config.locale));
+        }
+    }
+}
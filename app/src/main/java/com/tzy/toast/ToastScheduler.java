@@ -0,0 +1,1651 @@
+package com.tzy.toast;
+
+import java.io.PrintWriter;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * 类描述：Toast队列的核心逻辑，包括排队、限速和超时，从ToastManager中抽出来的。
+ * 该类不依赖任何Android的类，时间和线程分别通过{@link Clock}和{@link Executor}注入，
+ * 唯一的输出是{@link IToastShower}，所以可以直接在JVM上做单元测试、压力测试和性能分析。
+ * <p/>
+ * 每个优先级一个双向链表保持FIFO顺序，正在显示的记录单独放在mSlots中；另外用(contextName, callback)
+ * 的哈希索引来查找记录，并按contextName和pid分别计数，所以入队、取消、超时以及令牌桶限速的检查都是O(1)的。
+ * <p/>
+ * 入队时可以带一个coalesceKey：同一个context里已经有相同key的记录（排队中或正在显示）时，
+ * 新的Toast直接替换掉那条记录的内容并重新计时，而不是排到队尾，这样连续点击产生的Toast不会越积越多。
+ * 替换正在显示的记录时如果新内容还没准备好（{@link Options#ready}为false），旧内容继续显示，{@link #markReady}时才换；
+ * 旧内容的时间到了新内容还没准备好时，记录让出槽位回到队首等待，不会让后面的Toast跟着等。
+ * <p/>
+ * 高优先级的记录总是先于低优先级的显示，打开抢占后还会立即顶掉正在显示的低优先级Toast（被顶掉的不再显示）。
+ * 设置了maxAge的记录在队列里等待超过这个时间后，轮到它时会被直接丢弃，不会显示。
+ * 等待中的记录总数不超过{@link #setCapacity}设置的容量，超出时按{@link #EVICT_DROP_OLDEST}或
+ * {@link #EVICT_DROP_LOWEST_PRIORITY}淘汰。
+ * <p/>
+ * 同一个context的记录，以及同一个tag的记录，还各自挂在一个分组链表上，
+ * 所以一个Activity销毁时（{@link #purgeContext}）或按tag取消时，只需要遍历这一组，不用扫描整个队列。
+ * <p/>
+ * 入队时可以指定{@link Options#owner}，记录只弱引用它。owner被回收后，记录在下一次入队、取消或超时时
+ * 被移出队列，所以队列本身不会让一个已经没人用的Activity一直活着。
+ * <p/>
+ * 默认同一时间只显示一个Toast。{@link #setMaxVisible}可以打开堆叠模式，最多同时显示N个，
+ * 每个占一个槽位（slot），各自计时，一个隐藏后下一个补进空出来的槽位，{@link IToastShower#show(int)}
+ * 会告诉显示者用哪个槽位，由它决定叠放的位置。
+ * <p/>
+ * 入队时视图还没准备好的记录（{@link Options#ready}为false）照常排队，但不会被显示，
+ * 直到{@link #markReady}之后才参与调度，在它后面入队的已经准备好的记录会先显示。
+ * <p/>
+ * 设置了{@link ToastMetrics}时，入队、显示、隐藏和丢弃都会回调它；没设置时只多一次null判断。
+ * <p/>
+ * 稳定状态下入队、显示、超时和取消都不分配对象：哈希索引的冲突链直接串在记录上，移出队列的记录放回池里复用，
+ * context分组（连同令牌桶和owner的弱引用）在context空了以后也保留。只有带coalesceKey入队时还会多一个HashMap节点。
+ * <p/>
+ * Created by tzy on 2016/12/21.
+ */
+public class ToastScheduler {
+    public static final int LENGTH_SHORT = 0;
+    public static final int LENGTH_LONG = 1;
+
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
+    public static final int PRIORITY_URGENT = 3;
+    private static final int PRIORITY_COUNT = 4;
+
+    /** 容量满时丢弃等待最久的记录 */
+    public static final int EVICT_DROP_OLDEST = 0;
+    /** 容量满时丢弃优先级最低的记录中等待最久的，新记录的优先级更低时直接拒绝新记录 */
+    public static final int EVICT_DROP_LOWEST_PRIORITY = 1;
+
+    // enqueueToast的返回值，非负表示已接受
+    public static final int RESULT_ENQUEUED = 0;
+    public static final int RESULT_UPDATED = 1;
+    public static final int RESULT_COALESCED = 2;
+    public static final int RESULT_REJECTED_INVALID = -1;
+    public static final int RESULT_REJECTED_QUOTA = -2;
+    public static final int RESULT_REJECTED_CAPACITY = -3;
+    public static final int RESULT_REJECTED_GLOBAL_QUOTA = -4;
+
+    /** 堆叠模式最多同时显示的个数 */
+    public static final int MAX_VISIBLE = 8;
+
+    /** 每个context默认的令牌桶容量，即一次最多能连续入队多少个 */
+    public static final int MAX_PACKAGE_NOTIFICATIONS = 50;
+    /** 每个context默认每秒恢复的令牌数 */
+    public static final double DEFAULT_CONTEXT_RATE = 5;
+    /** 整个进程默认的令牌桶容量和每秒恢复的令牌数 */
+    public static final int DEFAULT_GLOBAL_BURST = 2 * MAX_PACKAGE_NOTIFICATIONS;
+    public static final double DEFAULT_GLOBAL_RATE = 10;
+    // context或tag分组超过这个数时清理一次空的
+    private static final int MIN_GROUP_PRUNE_SIZE = 32;
+    private static final int INITIAL_INDEX_CAPACITY = 16;
+    private static final int MAX_RECORD_POOL_SIZE = 16;
+    static final int LONG_DELAY = 3500; // 3.5 seconds
+    static final int SHORT_DELAY = 2000; // 2 seconds
+
+    /**
+     * 时间来源，单位是毫秒，只要求单调递增。
+     */
+    public interface Clock {
+        long uptimeMillis();
+    }
+
+    /**
+     * 定时任务的执行者。所有任务都必须在同一个线程上按时间顺序执行，
+     * 在Android上就是主线程的Handler。
+     */
+    public interface Executor {
+        /**
+         * 在{@link Clock#uptimeMillis()}到达uptimeMillis时执行task。
+         */
+        void schedule(Runnable task, long uptimeMillis);
+
+        /**
+         * 取消还没有执行的task，task不存在时什么也不做。
+         */
+        void cancel(Runnable task);
+    }
+
+    /**
+     * 决定每个Toast显示多久。在持有队列锁时调用，必须很快。
+     */
+    public interface TimingPolicy {
+        /**
+         * @param duration   {@link #LENGTH_SHORT}或{@link #LENGTH_LONG}
+         * @param textLength 文字长度，不知道时为0
+         * @param backlog    排在它后面等待显示的记录数
+         * @return 显示时长，毫秒
+         */
+        long getDisplayMillis(int duration, int textLength, int backlog);
+    }
+
+    /**
+     * {@link IToastShower}可以同时实现这个接口，轮到显示前先检查显示它的Activity是否已经在finish，
+     * 是的话不回调show，直接按{@link ToastMetrics#DROP_ACTIVITY_FINISHING}丢弃。在持有队列锁时调用，必须很快。
+     */
+    public interface FinishingAware {
+        boolean isFinishing();
+    }
+
+    /**
+     * 默认的时长：和系统Toast一样固定2秒或3.5秒，不管后面排了多少。
+     */
+    public static final TimingPolicy FIXED_TIMING = new TimingPolicy() {
+        @Override
+        public long getDisplayMillis(int duration, int textLength, int backlog) {
+            return duration == LENGTH_LONG ? LONG_DELAY : SHORT_DELAY;
+        }
+    };
+
+    /**
+     * 入队参数，和WindowManager.LayoutParams一样直接用public字段。可以复用同一个对象多次入队。
+     */
+    public static class Options {
+        /** {@link #LENGTH_SHORT}或{@link #LENGTH_LONG} */
+        public int duration = LENGTH_SHORT;
+        /** 不为null时，同一个context里相同key的记录会被原地替换 */
+        public Object coalesceKey;
+        /** PRIORITY_开头的常量 */
+        public int priority = PRIORITY_NORMAL;
+        /** 在队列中最多等待多久，超过后不再显示，0表示不限 */
+        public long maxAgeMillis;
+        /** 文字长度，交给{@link TimingPolicy}决定显示时长，0表示不知道 */
+        public int textLength;
+        /** 分组用的tag，可以用{@link #cancelTaggedToasts(Object)}一次取消同一个tag的所有记录 */
+        public Object tag;
+        /** 记录所属的对象，只被弱引用，被回收后记录也随之移除。callback不能强引用它，否则永远不会被回收 */
+        public Object owner;
+        /** 为false时记录还不能显示，要等{@link #markReady}，比如视图还在后台inflate */
+        public boolean ready = true;
+
+        public Options() {
+        }
+
+        public Options(int duration) {
+            this.duration = duration;
+        }
+
+        public Options set(Options other) {
+            duration = other.duration;
+            coalesceKey = other.coalesceKey;
+            priority = other.priority;
+            maxAgeMillis = other.maxAgeMillis;
+            textLength = other.textLength;
+            tag = other.tag;
+            owner = other.owner;
+            ready = other.ready;
+            return this;
+        }
+    }
+
+    private final Clock mClock;
+    // 显示时长和排队超时都挂在这上面，Executor上最多只有一个任务
+    private final ToastTimerWheel mTimers;
+
+    private final Object mLock = new Object();
+    // 每个优先级一个等待队列，不包括正在显示的记录
+    private final ToastQueue[] mQueues;
+    // 正在显示的记录，下标就是槽位，只用前mSlotCount个
+    private final ToastRecord[] mSlots = new ToastRecord[MAX_VISIBLE];
+    private int mSlotCount = 1;
+    private int mVisibleCount;
+    private int mPendingCount;
+    // (contextName, callback)到记录的哈希表，冲突链的节点就是记录本身，插入和删除都不分配对象
+    private ToastRecord[] mIndex = new ToastRecord[INITIAL_INDEX_CAPACITY];
+    private int mIndexSize;
+    private final HashMap<CoalesceKey, ToastRecord> mCoalesceIndex;
+    // 每个context一个分组，同时也是它的令牌桶。分组空了也保留，否则取消掉再入队就能绕过限速，
+    // 而且下一次入队不用再创建；context被purge时，或者分组多了以后清理空的、令牌已满的
+    private final HashMap<String, Group> mContextGroups;
+    private final HashMap<Object, Group> mTagGroups;
+    private final HashMap<Integer, Counter> mPidCounts;
+    // 上一次用到的pid的计数，同一个进程入队时不用每次都装箱查表
+    private int mCachedPid = -1;
+    private Counter mCachedPidCounter;
+    private final TokenBucket mGlobalBucket = new TokenBucket();
+    private int mGroupPruneSize = MIN_GROUP_PRUNE_SIZE;
+    private int mTagPruneSize = MIN_GROUP_PRUNE_SIZE;
+    // 移出队列的记录留着复用，通过indexNext串起来
+    private ToastRecord mRecordPool;
+    private int mRecordPoolSize;
+    private int mContextBurst = MAX_PACKAGE_NOTIFICATIONS;
+    private long mContextIntervalMicros = intervalMicros(DEFAULT_CONTEXT_RATE);
+    private int mGlobalBurst = DEFAULT_GLOBAL_BURST;
+    private long mGlobalIntervalMicros = intervalMicros(DEFAULT_GLOBAL_RATE);
+    // 只在持有mLock时使用，查找时复用，避免每次查找都new一个key
+    private final CoalesceKey mCoalesceLookupKey = new CoalesceKey();
+    private final int[] mResultHolder = new int[1];
+    private long mNextRecordId;
+    private volatile ToastMetrics mMetrics;
+    // owner被回收的记录的弱引用会出现在这里
+    private final ReferenceQueue<Object> mCollectedOwners = new ReferenceQueue<>();
+
+    private int mCapacity = Integer.MAX_VALUE;
+    private int mEvictionPolicy = EVICT_DROP_OLDEST;
+    private boolean mPreemptEnabled;
+    private TimingPolicy mTimingPolicy = FIXED_TIMING;
+
+    public ToastScheduler(Clock clock, Executor executor) {
+        mClock = clock;
+        mTimers = new ToastTimerWheel(executor, new Runnable() {
+            @Override
+            public void run() {
+                handleTimers();
+            }
+        });
+        mQueues = new ToastQueue[PRIORITY_COUNT];
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            mQueues[i] = new ToastQueue();
+        }
+        mCoalesceIndex = new HashMap<>();
+        mContextGroups = new HashMap<>();
+        mTagGroups = new HashMap<>();
+        mPidCounts = new HashMap<>();
+    }
+
+    /**
+     * @param metrics 为null时关闭指标统计
+     */
+    public void setMetrics(ToastMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    public ToastMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * 设置等待中的记录总数上限（不包括正在显示的），默认不限。
+     *
+     * @param evictionPolicy {@link #EVICT_DROP_OLDEST}或{@link #EVICT_DROP_LOWEST_PRIORITY}
+     */
+    public void setCapacity(int capacity, int evictionPolicy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        synchronized (mLock) {
+            mCapacity = capacity;
+            mEvictionPolicy = evictionPolicy;
+            while (mPendingCount > mCapacity) {
+                ToastRecord victim = mEvictionPolicy == EVICT_DROP_LOWEST_PRIORITY
+                        ? lowestPriorityLocked() : oldestLocked();
+                cancelToastLocked(victim, ToastMetrics.DROP_EVICTED);
+            }
+        }
+    }
+
+    /**
+     * 设置每个context的入队速率：令牌桶最多攒burst个令牌，每秒恢复perSecond个，每个新记录用掉一个，
+     * 没有令牌时入队被拒绝，返回{@link #RESULT_REJECTED_QUOTA}。原地更新和合并不用令牌。
+     * 默认是{@link #MAX_PACKAGE_NOTIFICATIONS}个、每秒{@link #DEFAULT_CONTEXT_RATE}个。
+     */
+    public void setRateLimit(int burst, double perSecond) {
+        long interval = intervalMicros(perSecond);
+        if (burst < 1) {
+            throw new IllegalArgumentException("burst must be positive: " + burst);
+        }
+        synchronized (mLock) {
+            mContextBurst = burst;
+            mContextIntervalMicros = interval;
+        }
+    }
+
+    /**
+     * 设置整个进程所有context加起来的入队速率，超出时返回{@link #RESULT_REJECTED_GLOBAL_QUOTA}。
+     * 默认是{@link #DEFAULT_GLOBAL_BURST}个、每秒{@link #DEFAULT_GLOBAL_RATE}个。
+     *
+     * @see #setRateLimit(int, double)
+     */
+    public void setGlobalRateLimit(int burst, double perSecond) {
+        long interval = intervalMicros(perSecond);
+        if (burst < 1) {
+            throw new IllegalArgumentException("burst must be positive: " + burst);
+        }
+        synchronized (mLock) {
+            mGlobalBurst = burst;
+            mGlobalIntervalMicros = interval;
+        }
+    }
+
+    /**
+     * 设置更高优先级的记录入队时是否立即顶掉正在显示的Toast，默认关闭。
+     */
+    public void setPreemptEnabled(boolean enabled) {
+        synchronized (mLock) {
+            mPreemptEnabled = enabled;
+        }
+    }
+
+    /**
+     * 设置同一时间最多显示几个Toast，大于1时为堆叠模式。减小时多出来的槽位里正在显示的会正常显示完，
+     * 只是不再补充。
+     */
+    public void setMaxVisible(int maxVisible) {
+        if (maxVisible < 1 || maxVisible > MAX_VISIBLE) {
+            throw new IllegalArgumentException("maxVisible must be in [1, " + MAX_VISIBLE + "]: " + maxVisible);
+        }
+        synchronized (mLock) {
+            mSlotCount = maxVisible;
+            showNextToastLocked();
+        }
+    }
+
+    /**
+     * 设置显示时长的策略，比如{@link AdaptiveTimingPolicy}。只影响之后开始显示的Toast，
+     * 以及正在显示的Toast在后面再有新记录入队时的重新计算。
+     *
+     * @param policy 为null时恢复成{@link #FIXED_TIMING}
+     */
+    public void setTimingPolicy(TimingPolicy policy) {
+        synchronized (mLock) {
+            mTimingPolicy = policy == null ? FIXED_TIMING : policy;
+        }
+    }
+
+    /**
+     * @return 是否已经入队（包括原地更新），被限速或容量拒绝时返回false
+     */
+    public boolean enqueueToast(int pid, String contextName, IToastShower callback, int duration) {
+        return enqueueToast(pid, contextName, callback, duration, null);
+    }
+
+    /**
+     * @param coalesceKey 不为null时，同一个context里相同key的记录会被这个Toast原地替换
+     * @return 是否已经入队（包括原地更新和替换），被限速或容量拒绝时返回false
+     */
+    public boolean enqueueToast(int pid, String contextName, IToastShower callback, int duration,
+                                Object coalesceKey) {
+        Options options = new Options(duration);
+        options.coalesceKey = coalesceKey;
+        return isAccepted(enqueueToast(pid, contextName, callback, options));
+    }
+
+    /**
+     * @return RESULT_开头的常量，可以用{@link #isAccepted(int)}判断是否被接受
+     */
+    public int enqueueToast(int pid, String contextName, IToastShower callback, Options options) {
+        if (contextName == null || callback == null) {
+            return RESULT_REJECTED_INVALID;
+        }
+
+        synchronized (mLock) {
+            purgeCollectedLocked();
+            ToastRecord record = insertLocked(pid, contextName, callback, options, mClock.uptimeMillis(),
+                    mResultHolder, 0);
+            if (record != null) {
+                if (record.slot >= 0) {
+                    // It's the current toast.  It doesn't matter if it's
+                    // new or just been updated.  Call back and tell it to show itself.
+                    // 合并进来的内容还没准备好时由markReady显示
+                    if (record.ready) {
+                        showToastLocked(record);
+                    }
+                } else {
+                    fillSlotsLocked(record.ready ? record.priority : -1);
+                }
+            }
+            return mResultHolder[0];
+        }
+    }
+
+    /**
+     * 一次入队多个记录，三个数组按下标一一对应。所有记录在同一次加锁中逐个检查限速并插入，
+     * 插完后才统一补充空闲槽位，所以不论多少个，最多只有空闲槽位数个show回调，不会先显示一个又被后面的顶掉。
+     * 更新或合并到正在显示的记录的，不论有几个对应同一条记录，插完后每条只重新显示一次。
+     *
+     * @return 每个记录的RESULT_开头的常量，和单独调用{@link #enqueueToast(int, String, IToastShower, Options)}
+     * 的返回值含义相同
+     */
+    public int[] enqueueAll(int pid, String[] contextNames, IToastShower[] callbacks, Options[] options) {
+        int count = contextNames.length;
+        if (callbacks.length != count || options.length != count) {
+            throw new IllegalArgumentException("Length mismatch: " + count + ", " + callbacks.length
+                    + ", " + options.length);
+        }
+        int[] results = new int[count];
+        synchronized (mLock) {
+            purgeCollectedLocked();
+            long now = mClock.uptimeMillis();
+            boolean inserted = false;
+            int readyPriority = -1;
+            // 更新或合并到正在显示的记录，循环结束后每个只显示一次
+            ToastRecord[] updated = null;
+            int updatedCount = 0;
+            for (int i = 0; i < count; i++) {
+                if (contextNames[i] == null || callbacks[i] == null || options[i] == null) {
+                    results[i] = RESULT_REJECTED_INVALID;
+                    continue;
+                }
+                ToastRecord record = insertLocked(pid, contextNames[i], callbacks[i], options[i], now, results, i);
+                if (record == null) {
+                    continue;
+                }
+                if (record.slot >= 0) {
+                    if (updated == null) {
+                        updated = new ToastRecord[MAX_VISIBLE];
+                    }
+                    if (indexOf(updated, updatedCount, record) < 0) {
+                        updated[updatedCount++] = record;
+                    }
+                } else {
+                    inserted = true;
+                    if (record.ready) {
+                        readyPriority = Math.max(readyPriority, record.priority);
+                    }
+                }
+            }
+            for (int i = 0; i < updatedCount; i++) {
+                // 合并进来的内容还没准备好时由markReady显示
+                if (updated[i].ready) {
+                    showToastLocked(updated[i]);
+                }
+            }
+            if (inserted) {
+                fillSlotsLocked(readyPriority);
+            }
+        }
+        return results;
+    }
+
+    private static int indexOf(ToastRecord[] records, int count, ToastRecord record) {
+        for (int i = 0; i < count; i++) {
+            if (records[i] == record) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 插入或原地更新记录，只动队列和索引，不补充槽位。
+     *
+     * @param results 结果写到results[index]
+     * @return 插入、更新或合并进去的记录，被拒绝时返回null。正在显示的记录被更新或合并时由调用方重新显示
+     */
+    private ToastRecord insertLocked(int pid, String contextName, IToastShower callback, Options options,
+                                     long now, int[] results, int index) {
+        ToastRecord record = findToastLocked(contextName, callback);
+        // If it's already in the queue, we update it in place, we don't
+        // move it to the end of the queue.
+        if (record != null) {
+            updateToastLocked(record, options, now);
+            results[index] = RESULT_UPDATED;
+            return record;
+        }
+        if (options.coalesceKey != null
+                && (record = findCoalescedLocked(contextName, options.coalesceKey)) != null) {
+            replaceToastLocked(record, callback, options, now);
+            results[index] = RESULT_COALESCED;
+            // 排队中的记录可能因为新内容变成可以显示，和新入队的一样由调用方补充槽位
+            return record;
+        }
+        // Limit the rate at which any given context can enqueue.  Prevents DOS attacks
+        // and deals with leaks.  先两个桶都检查，都有令牌时才一起扣，避免被全局桶拒绝的白白用掉context的令牌
+        long nowMicros = now * 1000;
+        Group group = getContextGroupLocked(contextName, nowMicros);
+        TokenBucket bucket = group.bucket;
+        if (!bucket.hasToken(nowMicros, mContextBurst, mContextIntervalMicros)) {
+            reportDroppedLocked(ToastMetrics.ID_NONE, ToastMetrics.DROP_QUOTA);
+            results[index] = RESULT_REJECTED_QUOTA;
+            return null;
+        }
+        if (!mGlobalBucket.hasToken(nowMicros, mGlobalBurst, mGlobalIntervalMicros)) {
+            reportDroppedLocked(ToastMetrics.ID_NONE, ToastMetrics.DROP_QUOTA);
+            results[index] = RESULT_REJECTED_GLOBAL_QUOTA;
+            return null;
+        }
+        if (mPendingCount >= mCapacity && !makeRoomLocked(options.priority)) {
+            reportDroppedLocked(ToastMetrics.ID_NONE, ToastMetrics.DROP_EVICTED);
+            results[index] = RESULT_REJECTED_CAPACITY;
+            return null;
+        }
+        bucket.take(nowMicros, mContextIntervalMicros);
+        mGlobalBucket.take(nowMicros, mGlobalIntervalMicros);
+        record = obtainRecordLocked(pid, contextName, callback, options);
+        if (options.owner != null) {
+            record.owner = getOwnerReferenceLocked(group, options.owner);
+        }
+        record.id = mNextRecordId++;
+        record.enqueueTime = now;
+        record.deadline = options.maxAgeMillis > 0 ? now + options.maxAgeMillis : 0;
+        addPendingLocked(record);
+        scheduleExpiryLocked(record);
+        addToIndexLocked(record);
+        if (record.coalesceKey != null) {
+            mCoalesceIndex.put(record.coalesceKey, record);
+        }
+        group.add(record.contextLink);
+        addToTagGroupLocked(record, options.tag);
+        getPidCounterLocked(pid).value++;
+        keepProcessAliveLocked(pid);
+        ToastMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.onEnqueued(record.id, mIndexSize);
+        }
+        results[index] = RESULT_ENQUEUED;
+        return record;
+    }
+
+    /**
+     * 有记录入队后补充空闲槽位；没有空闲槽位时按需顶掉正在显示的，或者重新计算显示时长。
+     *
+     * @param readyPriority 新入队的可以显示的记录中最高的优先级，没有时为-1
+     */
+    private void fillSlotsLocked(int readyPriority) {
+        if (findFreeSlotLocked() >= 0) {
+            showNextToastLocked();
+            return;
+        }
+        ToastRecord victim = mPreemptEnabled && readyPriority >= 0 ? findPreemptableLocked(readyPriority) : null;
+        if (victim != null) {
+            cancelToastLocked(victim, ToastMetrics.DROP_PREEMPTED);
+        } else {
+            // 后面排队的多了，正在显示的可能需要提前结束
+            retimeVisibleLocked();
+        }
+    }
+
+    public static boolean isAccepted(int result) {
+        return result >= 0;
+    }
+
+    /**
+     * 把用{@link Options#ready}为false入队的记录标记为可以显示，有空闲槽位时立即显示。
+     *
+     * @return 是否找到了对应的记录
+     */
+    public boolean markReady(String contextName, IToastShower callback) {
+        if (contextName == null || callback == null) {
+            return false;
+        }
+
+        synchronized (mLock) {
+            purgeCollectedLocked();
+            ToastRecord record = findToastLocked(contextName, callback);
+            if (record == null) {
+                return false;
+            }
+            if (!record.ready) {
+                record.ready = true;
+                if (record.slot >= 0) {
+                    // 合并到正在显示的记录时新内容还没准备好，现在换下旧内容
+                    hideHeldLocked(record);
+                    showToastLocked(record);
+                } else {
+                    showNextToastLocked();
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 已经回调过show、显示方才发现显示不了（比如Activity已经在finish）时调用。移除记录、空出槽位并显示下一个，
+     * 按reason上报{@link ToastMetrics#onDropped}而不是onHidden。
+     *
+     * @param reason ToastMetrics中DROP_开头的常量
+     * @return 是否找到了对应的记录
+     */
+    public boolean dropToast(String contextName, IToastShower callback, int reason) {
+        if (contextName == null || callback == null) {
+            return false;
+        }
+
+        synchronized (mLock) {
+            purgeCollectedLocked();
+            ToastRecord record = findToastLocked(contextName, callback);
+            if (record == null) {
+                return false;
+            }
+            // 没有真正显示出来，按没显示过上报
+            record.showTime = 0;
+            cancelToastLocked(record, reason);
+            return true;
+        }
+    }
+
+    /**
+     * @return 是否找到并取消了对应的记录
+     */
+    public boolean cancelToast(String contextName, IToastShower callback) {
+        if (contextName == null || callback == null) {
+            return false;
+        }
+
+        synchronized (mLock) {
+            purgeCollectedLocked();
+            ToastRecord record = findToastLocked(contextName, callback);
+            if (record == null) {
+                return false;
+            }
+            cancelToastLocked(record, ToastMetrics.DROP_CANCELLED);
+            return true;
+        }
+    }
+
+    public void cancelAllToasts() {
+        synchronized (mLock) {
+            for (int slot = 0; slot < MAX_VISIBLE; slot++) {
+                ToastRecord current = mSlots[slot];
+                if (current != null) {
+                    mSlots[slot] = null;
+                    current.slot = -1;
+                    current.callback.hide();
+                    hideHeldLocked(current);
+                    current.owner = null;
+                    reportRemovedLocked(current, 0, ToastMetrics.DROP_CANCELLED);
+                }
+            }
+            mVisibleCount = 0;
+            for (ToastQueue queue : mQueues) {
+                for (ToastRecord record = queue.head; record != null; record = record.next) {
+                    record.callback.hide();
+                    record.owner = null;
+                    reportRemovedLocked(record, 0, ToastMetrics.DROP_CANCELLED);
+                }
+                queue.clear();
+            }
+            mPendingCount = 0;
+            mTimers.clear();
+            // 这些记录不放回池里，直接交给GC，不用一个个摘链
+            Arrays.fill(mIndex, null);
+            mIndexSize = 0;
+            mCoalesceIndex.clear();
+            // 分组连同令牌桶都保留，只清空成员
+            for (Group group : mContextGroups.values()) {
+                group.head = null;
+                group.size = 0;
+            }
+            mTagGroups.clear();
+            mPidCounts.clear();
+            mCachedPid = -1;
+            mCachedPidCounter = null;
+        }
+    }
+
+    /**
+     * 取消一个context的所有记录，包括正在显示的。
+     *
+     * @return 取消的记录数
+     */
+    public int cancelContextToasts(String contextName) {
+        synchronized (mLock) {
+            return cancelGroupLocked(mContextGroups.get(contextName), ToastMetrics.DROP_CANCELLED);
+        }
+    }
+
+    /**
+     * 和{@link #cancelContextToasts(String)}一样，但用于context已经销毁的情况，
+     * 没显示过的记录按{@link ToastMetrics#DROP_ACTIVITY_FINISHING}上报。
+     *
+     * @return 移除的记录数
+     */
+    public int purgeContext(String contextName) {
+        synchronized (mLock) {
+            Group group = mContextGroups.get(contextName);
+            int purged = cancelGroupLocked(group, ToastMetrics.DROP_ACTIVITY_FINISHING);
+            // context不会再入队了，分组和令牌桶也不用留着
+            if (group != null) {
+                mContextGroups.remove(contextName);
+                group.releaseOwnerReference();
+            }
+            return purged;
+        }
+    }
+
+    /**
+     * 取消入队时{@link Options#tag}和tag相等（equals）的所有记录，不分context。
+     *
+     * @return 取消的记录数
+     */
+    public int cancelTaggedToasts(Object tag) {
+        if (tag == null) {
+            return 0;
+        }
+        synchronized (mLock) {
+            return cancelGroupLocked(mTagGroups.get(tag), ToastMetrics.DROP_CANCELLED);
+        }
+    }
+
+    /**
+     * @return 队列中的记录数，包括正在显示的那个
+     */
+    public int size() {
+        synchronized (mLock) {
+            return mIndexSize;
+        }
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            for (ToastRecord r : mSlots) {
+                if (r != null) {
+                    r.dump(pw, prefix + "* ");
+                }
+            }
+            for (int priority = PRIORITY_COUNT - 1; priority >= 0; priority--) {
+                for (ToastRecord r = mQueues[priority].head; r != null; r = r.next) {
+                    r.dump(pw, prefix);
+                }
+            }
+        }
+    }
+
+    private ToastRecord findToastLocked(String contextName, IToastShower callback) {
+        int hash = indexHash(contextName, callback);
+        for (ToastRecord r = mIndex[hash & (mIndex.length - 1)]; r != null; r = r.indexNext) {
+            // callback按引用比较；contextName一般是同一个（ToastHost里只创建一次），引用相同时不用逐字比较
+            if (r.hash == hash && r.callback == callback
+                    && (r.contextName == contextName || r.contextName.equals(contextName))) {
+                return r;
+            }
+        }
+        return null;
+    }
+
+    private static int indexHash(String contextName, IToastShower callback) {
+        int h = 31 * contextName.hashCode() + System.identityHashCode(callback);
+        return h ^ (h >>> 16);
+    }
+
+    private void addToIndexLocked(ToastRecord record) {
+        if (mIndexSize >= mIndex.length * 3 / 4) {
+            resizeIndexLocked();
+        }
+        record.hash = indexHash(record.contextName, record.callback);
+        int bucket = record.hash & (mIndex.length - 1);
+        record.indexNext = mIndex[bucket];
+        mIndex[bucket] = record;
+        mIndexSize++;
+    }
+
+    private void removeFromIndexLocked(ToastRecord record) {
+        int bucket = record.hash & (mIndex.length - 1);
+        ToastRecord prev = null;
+        for (ToastRecord r = mIndex[bucket]; r != null; prev = r, r = r.indexNext) {
+            if (r == record) {
+                if (prev == null) {
+                    mIndex[bucket] = r.indexNext;
+                } else {
+                    prev.indexNext = r.indexNext;
+                }
+                record.indexNext = null;
+                mIndexSize--;
+                return;
+            }
+        }
+    }
+
+    /**
+     * 只会变大，队列最长时扩到多大就保持多大，之后不再分配。
+     */
+    private void resizeIndexLocked() {
+        ToastRecord[] old = mIndex;
+        mIndex = new ToastRecord[old.length * 2];
+        int mask = mIndex.length - 1;
+        for (ToastRecord head : old) {
+            ToastRecord r = head;
+            while (r != null) {
+                ToastRecord next = r.indexNext;
+                r.indexNext = mIndex[r.hash & mask];
+                mIndex[r.hash & mask] = r;
+                r = next;
+            }
+        }
+    }
+
+    private ToastRecord findCoalescedLocked(String contextName, Object coalesceKey) {
+        mCoalesceLookupKey.set(contextName, coalesceKey);
+        ToastRecord record = mCoalesceIndex.get(mCoalesceLookupKey);
+        mCoalesceLookupKey.set(null, null);
+        return record;
+    }
+
+    /**
+     * 更新已有记录的参数，位置不变；优先级变了时移到新优先级队列的队尾。
+     */
+    private void updateToastLocked(ToastRecord record, Options options, long now) {
+        record.duration = options.duration;
+        record.textLength = options.textLength;
+        if (record.slot < 0) {
+            record.ready = options.ready;
+        }
+        if (!equal(record.tag, options.tag)) {
+            if (record.tag != null) {
+                removeFromGroup(record.tagLink);
+            }
+            addToTagGroupLocked(record, options.tag);
+        }
+        record.deadline = options.maxAgeMillis > 0 ? now + options.maxAgeMillis : 0;
+        scheduleExpiryLocked(record);
+        int priority = clampPriority(options.priority);
+        if (priority != record.priority) {
+            if (record.slot < 0) {
+                mQueues[record.priority].remove(record);
+                record.priority = priority;
+                mQueues[priority].addLast(record);
+            } else {
+                record.priority = priority;
+            }
+        }
+    }
+
+    /**
+     * 用新的callback替换record原来的callback，位置不变。正在显示时隐藏旧的内容，由调用方显示新的内容并重新计时；
+     * 新的内容还没准备好时旧的内容继续显示，等{@link #markReady}时再替换。
+     */
+    private void replaceToastLocked(ToastRecord record, IToastShower callback, Options options, long now) {
+        IToastShower old = record.callback;
+        removeFromIndexLocked(record);
+        record.callback = callback;
+        updateToastLocked(record, options, now);
+        addToIndexLocked(record);
+        reportDroppedLocked(ToastMetrics.ID_NONE, ToastMetrics.DROP_COALESCED);
+        if (record.slot < 0) {
+            old.hide();
+            return;
+        }
+        if (!options.ready) {
+            record.ready = false;
+            if (record.heldCallback == null) {
+                record.heldCallback = old;
+            } else {
+                // 之前留着的内容还在显示，old本身从来没有显示过
+                old.hide();
+            }
+            return;
+        }
+        // 先隐藏旧的再显示新的，两者都会post到同一个线程，中间不会有一帧空白
+        old.hide();
+        hideHeldLocked(record);
+        record.ready = true;
+    }
+
+    /**
+     * 隐藏合并时留着的旧内容，没有时什么也不做。
+     */
+    private void hideHeldLocked(ToastRecord record) {
+        IToastShower held = record.heldCallback;
+        if (held != null) {
+            record.heldCallback = null;
+            held.hide();
+        }
+    }
+
+    private void handleTimers() {
+        synchronized (mLock) {
+            purgeCollectedLocked();
+            mTimers.expire(mClock.uptimeMillis());
+        }
+    }
+
+    /**
+     * 记录的定时到期：正在显示的是显示时长到了，排队中的是等待超时了。
+     */
+    private void handleTimerLocked(ToastRecord record) {
+        if (record.slot >= 0 && !record.ready) {
+            // 合并进来的新内容还没准备好，旧内容的时间到了：让出槽位，回到同优先级队列的队首等markReady
+            hideHeldLocked(record);
+            requeueLocked(record);
+            showNextToastLocked();
+        } else if (record.slot >= 0) {
+            cancelToastLocked(record, ToastMetrics.DROP_CANCELLED);
+        } else {
+            cancelToastLocked(record, ToastMetrics.DROP_EXPIRED);
+        }
+    }
+
+    /**
+     * 排队中的记录按deadline定时，到期后不等轮到它就直接丢弃，不再占着队列。正在显示的记录的定时是显示时长，不受影响。
+     */
+    private void scheduleExpiryLocked(ToastRecord record) {
+        if (record.slot >= 0) {
+            return;
+        }
+        if (record.deadline != 0) {
+            mTimers.schedule(record, record.deadline);
+        } else {
+            mTimers.cancel(record);
+        }
+    }
+
+    /**
+     * 隐藏并移除记录，正在显示的被移除后显示下一个。
+     *
+     * @param dropReason 记录还没显示过时上报的丢弃原因
+     */
+    private void cancelToastLocked(ToastRecord record, int dropReason) {
+        boolean wasShowing = record.slot >= 0;
+        record.callback.hide();
+        hideHeldLocked(record);
+        mTimers.cancel(record);
+        removeToastLocked(record);
+        keepProcessAliveLocked(record.pid);
+        reportRemovedLocked(record, mIndexSize, dropReason);
+        recycleRecordLocked(record);
+        if (wasShowing) {
+            // Show the next one. If the callback fails, this will remove
+            // it from the list, so don't assume that the list hasn't changed
+            // after this point.
+            showNextToastLocked();
+        }
+    }
+
+    private void removeToastLocked(ToastRecord record) {
+        if (record.slot >= 0) {
+            mSlots[record.slot] = null;
+            record.slot = -1;
+            mVisibleCount--;
+        } else {
+            mQueues[record.priority].remove(record);
+            mPendingCount--;
+        }
+        removeFromIndexLocked(record);
+        if (record.coalesceKey != null) {
+            mCoalesceIndex.remove(record.coalesceKey);
+        }
+        // 分组空了也保留，见mContextGroups
+        removeFromGroup(record.contextLink);
+        removeFromGroup(record.tagLink);
+        getPidCounterLocked(record.pid).value--;
+        record.owner = null;
+    }
+
+    /**
+     * 已经移出队列的记录放回池里，之后入队时复用。调用之后不能再访问record。
+     */
+    private void recycleRecordLocked(ToastRecord record) {
+        if (mRecordPoolSize >= MAX_RECORD_POOL_SIZE) {
+            return;
+        }
+        // 不再引用用户的对象
+        record.callback = null;
+        record.heldCallback = null;
+        record.tag = null;
+        record.coalesceKey = null;
+        record.coalesceKeyHolder.set(null, null);
+        record.indexNext = mRecordPool;
+        mRecordPool = record;
+        mRecordPoolSize++;
+    }
+
+    private ToastRecord obtainRecordLocked(int pid, String contextName, IToastShower callback, Options options) {
+        ToastRecord record = mRecordPool;
+        if (record != null) {
+            mRecordPool = record.indexNext;
+            mRecordPoolSize--;
+            record.indexNext = null;
+        } else {
+            record = new ToastRecord();
+        }
+        record.init(pid, contextName, callback, options);
+        return record;
+    }
+
+    /**
+     * 同一个context的记录一般都是同一个owner（MoaToast里是ToastHost），共用一个弱引用，入队时不用每次都创建。
+     */
+    private OwnerReference getOwnerReferenceLocked(Group group, Object owner) {
+        OwnerReference ref = group.ownerReference;
+        if (ref == null || ref.get() != owner) {
+            ref = new OwnerReference(owner, mCollectedOwners, group);
+            group.ownerReference = ref;
+        }
+        return ref;
+    }
+
+    /**
+     * 移除owner已经被回收的记录。
+     */
+    private void purgeCollectedLocked() {
+        Reference<?> ref;
+        while ((ref = mCollectedOwners.poll()) != null) {
+            OwnerReference owner = (OwnerReference) ref;
+            Group group = owner.group;
+            if (group == null) {
+                continue;
+            }
+            if (group.ownerReference == owner) {
+                group.ownerReference = null;
+            }
+            owner.group = null;
+            // 和cancelGroupLocked一样，先移除等待中的，最后才移除正在显示的
+            GroupLink link = group.head;
+            while (link != null) {
+                GroupLink next = link.next;
+                if (link.record.owner == owner && link.record.slot < 0) {
+                    cancelToastLocked(link.record, ToastMetrics.DROP_OWNER_COLLECTED);
+                }
+                link = next;
+            }
+            for (ToastRecord r : mSlots) {
+                if (r != null && r.owner == owner) {
+                    cancelToastLocked(r, ToastMetrics.DROP_OWNER_COLLECTED);
+                }
+            }
+        }
+    }
+
+    private void addPendingLocked(ToastRecord record) {
+        mQueues[record.priority].addLast(record);
+        mPendingCount++;
+    }
+
+    /**
+     * 把正在显示的记录放回等待队列的队首，槽位空出来。
+     */
+    private void requeueLocked(ToastRecord record) {
+        mSlots[record.slot] = null;
+        record.slot = -1;
+        mVisibleCount--;
+        mQueues[record.priority].addFirst(record);
+        mPendingCount++;
+        scheduleExpiryLocked(record);
+    }
+
+    /**
+     * 容量已满时按淘汰策略腾出一个位置。
+     *
+     * @return 是否腾出了位置，返回false时应拒绝新记录
+     */
+    private boolean makeRoomLocked(int priority) {
+        ToastRecord victim;
+        if (mEvictionPolicy == EVICT_DROP_LOWEST_PRIORITY) {
+            victim = lowestPriorityLocked();
+            if (victim == null || victim.priority > clampPriority(priority)) {
+                return false;
+            }
+        } else {
+            victim = oldestLocked();
+            if (victim == null) {
+                return false;
+            }
+        }
+        cancelToastLocked(victim, ToastMetrics.DROP_EVICTED);
+        return true;
+    }
+
+    /**
+     * @return 等待最久的记录，每个队列的头部是该队列中最早入队的，所以只需要比较各队列的头部
+     */
+    private ToastRecord oldestLocked() {
+        ToastRecord oldest = null;
+        for (ToastQueue queue : mQueues) {
+            ToastRecord head = queue.head;
+            if (head != null && (oldest == null || head.id < oldest.id)) {
+                oldest = head;
+            }
+        }
+        return oldest;
+    }
+
+    private ToastRecord lowestPriorityLocked() {
+        for (ToastQueue queue : mQueues) {
+            if (queue.head != null) {
+                return queue.head;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 先移除分组里等待中的记录，最后才移除正在显示的，否则中途会把同组的下一个显示出来又马上隐藏。
+     */
+    private int cancelGroupLocked(Group group, int dropReason) {
+        if (group == null) {
+            return 0;
+        }
+        int cancelled = 0;
+        GroupLink link = group.head;
+        while (link != null) {
+            // 取消会把link从分组中摘掉，先记下下一个
+            GroupLink next = link.next;
+            if (link.record.slot < 0) {
+                cancelToastLocked(link.record, dropReason);
+                cancelled++;
+            }
+            link = next;
+        }
+        // 剩下的都是正在显示的
+        while (group.head != null) {
+            cancelToastLocked(group.head.record, dropReason);
+            cancelled++;
+        }
+        return cancelled;
+    }
+
+    private void addToTagGroupLocked(ToastRecord record, Object tag) {
+        record.tag = tag;
+        if (tag == null) {
+            return;
+        }
+        Group group = mTagGroups.get(tag);
+        if (group == null) {
+            if (mTagGroups.size() >= mTagPruneSize) {
+                pruneTagGroupsLocked();
+            }
+            group = new Group();
+            mTagGroups.put(tag, group);
+        }
+        group.add(record.tagLink);
+    }
+
+    /**
+     * 和context分组一样，tag分组空了也先留着，同一个tag反复入队时不用再创建，分组多了以后才清理空的。
+     */
+    private void pruneTagGroupsLocked() {
+        Iterator<Group> it = mTagGroups.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().size == 0) {
+                it.remove();
+            }
+        }
+        mTagPruneSize = Math.max(MIN_GROUP_PRUNE_SIZE, mTagGroups.size() * 2);
+    }
+
+    private static void removeFromGroup(GroupLink link) {
+        if (link.group != null) {
+            link.group.remove(link);
+        }
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private void reportDroppedLocked(long recordId, int reason) {
+        ToastMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.onDropped(recordId, reason);
+        }
+    }
+
+    /**
+     * 显示过的记录上报onHidden，被抢占的再加一个{@link ToastMetrics#DROP_PREEMPTED}；没显示过的上报dropReason。
+     */
+    private void reportRemovedLocked(ToastRecord record, int queueDepth, int dropReason) {
+        ToastMetrics metrics = mMetrics;
+        if (metrics == null) {
+            return;
+        }
+        if (record.showTime != 0) {
+            metrics.onHidden(record.id, mClock.uptimeMillis() - record.showTime, queueDepth);
+            if (dropReason == ToastMetrics.DROP_PREEMPTED) {
+                metrics.onDropped(record.id, dropReason);
+            }
+        } else {
+            metrics.onDropped(record.id, dropReason);
+        }
+    }
+
+    /**
+     * 从最高优先级开始取记录填满空闲的槽位，已经过期的直接丢弃。
+     */
+    private void showNextToastLocked() {
+        int slot;
+        while ((slot = findFreeSlotLocked()) >= 0) {
+            ToastRecord record = pollPendingLocked();
+            if (record == null) {
+                return;
+            }
+            mSlots[slot] = record;
+            record.slot = slot;
+            mVisibleCount++;
+            showToastLocked(record);
+        }
+    }
+
+    private ToastRecord pollPendingLocked() {
+        long now = mClock.uptimeMillis();
+        for (int priority = PRIORITY_COUNT - 1; priority >= 0; priority--) {
+            ToastQueue queue = mQueues[priority];
+            ToastRecord record = queue.head;
+            while (record != null) {
+                ToastRecord next = record.next;
+                if (record.deadline != 0 && record.deadline <= now) {
+                    cancelToastLocked(record, ToastMetrics.DROP_EXPIRED);
+                } else if (record.ready && record.callback instanceof FinishingAware
+                        && ((FinishingAware) record.callback).isFinishing()) {
+                    cancelToastLocked(record, ToastMetrics.DROP_ACTIVITY_FINISHING);
+                } else if (record.ready) {
+                    queue.remove(record);
+                    mPendingCount--;
+                    return record;
+                }
+                // 还没准备好的留在原位，先显示后面的
+                record = next;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return 编号最小的空闲槽位，没有时返回-1
+     */
+    private int findFreeSlotLocked() {
+        if (mVisibleCount >= mSlotCount) {
+            return -1;
+        }
+        for (int slot = 0; slot < mSlotCount; slot++) {
+            if (mSlots[slot] == null) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return 正在显示的记录中优先级低于priority的最低的一个，同优先级时取最早显示的
+     */
+    private ToastRecord findPreemptableLocked(int priority) {
+        ToastRecord victim = null;
+        for (ToastRecord r : mSlots) {
+            if (r != null && r.priority < priority
+                    && (victim == null || r.priority < victim.priority
+                    || (r.priority == victim.priority && r.showTime < victim.showTime))) {
+                victim = r;
+            }
+        }
+        return victim;
+    }
+
+    private void showToastLocked(ToastRecord record) {
+        record.callback.show(record.slot);
+        scheduleTimeoutLocked(record, false);
+        if (record.showTime == 0) {
+            // 被合并后重新显示的不算
+            long now = mClock.uptimeMillis();
+            record.showTime = Math.max(now, 1);
+            ToastMetrics metrics = mMetrics;
+            if (metrics != null) {
+                metrics.onShown(record.id, now - record.enqueueTime, mIndexSize);
+            }
+        }
+    }
+
+    private void scheduleTimeoutLocked(ToastRecord r, boolean immediate) {
+        long now = mClock.uptimeMillis();
+        long delay = immediate ? 0 : mTimingPolicy.getDisplayMillis(r.duration, r.textLength, backlogPerSlotLocked());
+        r.displayStart = now;
+        r.hideTime = now + delay;
+        // 开始显示后不再有排队超时，同一个定时改成显示时长
+        mTimers.schedule(r, r.hideTime);
+    }
+
+    /**
+     * 按当前的等待数重新计算正在显示的Toast的时长，只会提前，不会延后。
+     */
+    private void retimeVisibleLocked() {
+        int backlog = backlogPerSlotLocked();
+        for (ToastRecord r : mSlots) {
+            if (r == null) {
+                continue;
+            }
+            long hideTime = r.displayStart + mTimingPolicy.getDisplayMillis(r.duration, r.textLength, backlog);
+            if (hideTime < r.hideTime) {
+                r.hideTime = Math.max(hideTime, mClock.uptimeMillis());
+                mTimers.schedule(r, r.hideTime);
+            }
+        }
+    }
+
+    /**
+     * @return 每个槽位后面平均排了多少个，堆叠模式下几个槽位同时消化队列
+     */
+    private int backlogPerSlotLocked() {
+        return (mPendingCount + mSlotCount - 1) / mSlotCount;
+    }
+
+    private void keepProcessAliveLocked(int pid) {
+        int toastCount = getPidCounterLocked(pid).value; // toasts from this pid
+        // TODO: 2016/12/21 弹出toast时要保证进程在前台：
+        // 类似于 mAm.setProcessForeground(mForegroundToken, pid, toastCount > 0);
+    }
+
+    private Group getContextGroupLocked(String contextName, long nowMicros) {
+        Group group = mContextGroups.get(contextName);
+        if (group == null) {
+            if (mContextGroups.size() >= mGroupPruneSize) {
+                pruneContextGroupsLocked(nowMicros);
+            }
+            group = new Group();
+            group.bucket = new TokenBucket();
+            mContextGroups.put(contextName, group);
+        }
+        return group;
+    }
+
+    /**
+     * 空的、令牌已经满了的分组和新建的没有区别，可以直接丢掉。按分组的个数翻倍地触发，均摊下来是O(1)的。
+     */
+    private void pruneContextGroupsLocked(long nowMicros) {
+        Iterator<Group> it = mContextGroups.values().iterator();
+        while (it.hasNext()) {
+            Group group = it.next();
+            if (group.size == 0 && group.bucket.isFull(nowMicros)) {
+                group.releaseOwnerReference();
+                it.remove();
+            }
+        }
+        mGroupPruneSize = Math.max(MIN_GROUP_PRUNE_SIZE, mContextGroups.size() * 2);
+    }
+
+    private static long intervalMicros(double perSecond) {
+        if (!(perSecond > 0)) {
+            throw new IllegalArgumentException("perSecond must be positive: " + perSecond);
+        }
+        return Math.max(1, Math.round(1000000 / perSecond));
+    }
+
+    private static int clampPriority(int priority) {
+        return Math.max(PRIORITY_LOW, Math.min(PRIORITY_URGENT, priority));
+    }
+
+    /**
+     * 计数到0也不移除，pid的个数很少，这样同一个进程反复入队时不用再分配。
+     */
+    private Counter getPidCounterLocked(int pid) {
+        if (pid == mCachedPid) {
+            return mCachedPidCounter;
+        }
+        Counter counter = mPidCounts.get(pid);
+        if (counter == null) {
+            counter = new Counter();
+            mPidCounts.put(pid, counter);
+        }
+        mCachedPid = pid;
+        mCachedPidCounter = counter;
+        return counter;
+    }
+
+
+    //---------------------内部辅助类-----------------------------\\
+
+    /**
+     * 合并用的key：contextName和coalesceKey都按equals比较。
+     */
+    private static final class CoalesceKey {
+        String contextName;
+        Object key;
+
+        CoalesceKey() {
+        }
+
+        void set(String contextName, Object key) {
+            this.contextName = contextName;
+            this.key = key;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * contextName.hashCode() + key.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CoalesceKey)) {
+                return false;
+            }
+            CoalesceKey other = (CoalesceKey) o;
+            return contextName.equals(other.contextName) && key.equals(other.key);
+        }
+    }
+
+    private static final class Counter {
+        int value;
+    }
+
+    /**
+     * 令牌桶，按GCRA的方式只记一个时间：桶重新装满的时刻。每次取令牌这个时刻往后推一个间隔，
+     * 只要它离现在不超过burst - 1个间隔就还有令牌，不需要定时补充令牌。时间单位是微秒，避免速率不是整数毫秒时的误差。
+     */
+    private static final class TokenBucket {
+        long fullAt;
+
+        boolean hasToken(long nowMicros, int burst, long intervalMicros) {
+            long tolerance = (burst - 1) > Long.MAX_VALUE / 2 / intervalMicros
+                    ? Long.MAX_VALUE / 2 : (burst - 1) * intervalMicros;
+            return fullAt - nowMicros <= tolerance;
+        }
+
+        void take(long nowMicros, long intervalMicros) {
+            fullAt = Math.max(fullAt, nowMicros) + intervalMicros;
+        }
+
+        boolean isFull(long nowMicros) {
+            return fullAt <= nowMicros;
+        }
+    }
+
+    /**
+     * owner的弱引用，同一个context里owner相同的记录共用一个，被回收时按group找到这些记录。
+     */
+    private static final class OwnerReference extends WeakReference<Object> {
+        Group group;
+
+        OwnerReference(Object owner, ReferenceQueue<Object> queue, Group group) {
+            super(owner, queue);
+            this.group = group;
+        }
+    }
+
+    /**
+     * 记录在一个分组（context或tag）里的节点。一条记录可以同时在多个分组里，每个分组一个节点。
+     */
+    private static final class GroupLink {
+        final ToastRecord record;
+        Group group;
+        GroupLink prev;
+        GroupLink next;
+
+        GroupLink(ToastRecord record) {
+            this.record = record;
+        }
+    }
+
+    /**
+     * 分组内的双向链表，入队和移除都是O(1)的。
+     */
+    private static final class Group {
+        GroupLink head;
+        int size;
+        // 只有context分组有，tag分组为null
+        TokenBucket bucket;
+        OwnerReference ownerReference;
+
+        /**
+         * 分组不用了，之后owner被回收时不用再处理。
+         */
+        void releaseOwnerReference() {
+            if (ownerReference != null) {
+                ownerReference.group = null;
+                ownerReference.clear();
+                ownerReference = null;
+            }
+        }
+
+        void add(GroupLink link) {
+            link.group = this;
+            link.prev = null;
+            link.next = head;
+            if (head != null) {
+                head.prev = link;
+            }
+            head = link;
+            size++;
+        }
+
+        void remove(GroupLink link) {
+            if (link.prev == null) {
+                head = link.next;
+            } else {
+                link.prev.next = link.next;
+            }
+            if (link.next != null) {
+                link.next.prev = link.prev;
+            }
+            link.prev = null;
+            link.next = null;
+            link.group = null;
+            size--;
+        }
+    }
+
+    /**
+     * 侵入式双向链表，节点就是ToastRecord本身。
+     * 已知记录时的删除是O(1)的，不需要像ArrayList那样移动后面的元素。
+     */
+    private static final class ToastQueue {
+        ToastRecord head;
+        ToastRecord tail;
+
+        void addLast(ToastRecord record) {
+            record.prev = tail;
+            record.next = null;
+            if (tail == null) {
+                head = record;
+            } else {
+                tail.next = record;
+            }
+            tail = record;
+            record.queued = true;
+        }
+
+        void addFirst(ToastRecord record) {
+            record.prev = null;
+            record.next = head;
+            if (head == null) {
+                tail = record;
+            } else {
+                head.prev = record;
+            }
+            head = record;
+            record.queued = true;
+        }
+
+        void remove(ToastRecord record) {
+            if (!record.queued) {
+                return;
+            }
+            if (record.prev == null) {
+                head = record.next;
+            } else {
+                record.prev.next = record.next;
+            }
+            if (record.next == null) {
+                tail = record.prev;
+            } else {
+                record.next.prev = record.prev;
+            }
+            record.prev = null;
+            record.next = null;
+            record.queued = false;
+        }
+
+        void clear() {
+            ToastRecord record = head;
+            while (record != null) {
+                ToastRecord next = record.next;
+                record.prev = null;
+                record.next = null;
+                record.queued = false;
+                record = next;
+            }
+            head = null;
+            tail = null;
+        }
+    }
+
+    /**
+     * 移出队列后会放回池里复用，除了链表节点外的字段都在{@link #init}里重新赋值。
+     */
+    private final class ToastRecord extends ToastTimerWheel.Timer {
+        int pid;
+        String contextName;
+        // 被合并时会换成新的callback
+        IToastShower callback;
+        // 正在显示时被合并、新的callback还没准备好，旧的callback留着继续显示，否则为null
+        IToastShower heldCallback;
+        // 没有coalesceKey时为null，否则指向coalesceKeyHolder
+        CoalesceKey coalesceKey;
+        private final CoalesceKey coalesceKeyHolder = new CoalesceKey();
+        // mIndex里的哈希值和冲突链，在池里时串起空闲的记录
+        int hash;
+        ToastRecord indexNext;
+        final GroupLink contextLink = new GroupLink(this);
+        final GroupLink tagLink = new GroupLink(this);
+        Object tag;
+        OwnerReference owner;
+        int duration;
+        int priority;
+        long id;
+        long enqueueTime;
+        // 过期时间，0表示不会过期
+        long deadline;
+        // 第一次显示的时间，0表示还没显示过
+        long showTime;
+        // 正在显示时所在的槽位，排队中为-1
+        int slot;
+        boolean ready;
+        int textLength;
+        // 本次显示的开始时间和预定的隐藏时间，被合并后重新显示时会重置
+        long displayStart;
+        long hideTime;
+
+        @Override
+        void onExpired() {
+            handleTimerLocked(this);
+        }
+
+        ToastRecord prev;
+        ToastRecord next;
+        boolean queued;
+
+        void init(int pid, String contextName, IToastShower callback, Options options) {
+            this.pid = pid;
+            this.contextName = contextName;
+            this.callback = callback;
+            this.heldCallback = null;
+            if (options.coalesceKey != null) {
+                coalesceKeyHolder.set(contextName, options.coalesceKey);
+                this.coalesceKey = coalesceKeyHolder;
+            } else {
+                this.coalesceKey = null;
+            }
+            this.tag = null;
+            this.owner = null;
+            this.duration = options.duration;
+            this.priority = clampPriority(options.priority);
+            this.id = 0;
+            this.enqueueTime = 0;
+            this.deadline = 0;
+            this.showTime = 0;
+            this.slot = -1;
+            this.ready = options.ready;
+            this.textLength = options.textLength;
+            this.displayStart = 0;
+            this.hideTime = 0;
+        }
+
+        void dump(PrintWriter pw, String prefix) {
+            pw.println(prefix + this);
+        }
+
+        @Override
+        public final String toString() {
+            return "ToastRecord{"
+                    + Integer.toHexString(System.identityHashCode(this))
+                    + " contextName=" + contextName
+                    + " callback=" + callback
+                    + " duration=" + duration
+                    + " priority=" + priority;
+        }
+    }
+}
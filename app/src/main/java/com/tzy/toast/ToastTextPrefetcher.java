@@ -0,0 +1,249 @@
+package com.tzy.toast;
+
+import android.graphics.Typeface;
+import android.os.Build;
+import android.os.Process;
+import android.text.Layout;
+import android.text.Spanned;
+import android.text.SpannedString;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.util.LruCache;
+import android.view.View;
+import android.widget.TextView;
+
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 类描述：在后台线程上提前排版Toast的文字，并缓存量好的尺寸。
+ * <p/>
+ * 长文字或带样式的文字在handleShow里dialog.show()时才第一次measure，断行和字形测量都在主线程上，
+ * 重复的提示每次都要再来一遍。makeText/setText时这里先在后台线程用同样的TextPaint和宽度
+ * 构建一个StaticLayout：字形宽度会进入进程共享的文字排版缓存，主线程上TextView再排版时基本都能命中；
+ * 量出来的尺寸按(文字, 宽度, 字体)放进有上限的LRU，堆叠模式计算位置时直接用，不用再measure一次。
+ * <p/>
+ * 带样式的文字只预热、不缓存：Spannable之后还可能被修改，span（比如匿名的ClickableSpan）还可能引用着Activity，
+ * 放进进程级的静态缓存既会拿到过期的尺寸也会泄漏。后台排版用的是调用时复制的SpannedString，排完就丢掉。
+ * <p/>
+ * 同一段文字已经在排队或者正在排版时不再重复提交；等待的任务最多{@link #MAX_PENDING}个，满了直接放弃这次预热，
+ * 短时间内大量不同的文字（其中很多可能会被限速拒绝）不会无限地堆积画笔和文字的副本。
+ * <p/>
+ * compileSdk是21，没有PrecomputedText，TextView也不能直接用外部构建的Layout，所以这里只能做到预热和缓存尺寸。
+ */
+final class ToastTextPrefetcher {
+    static final int MAX_ENTRIES = 64;
+    static final int MAX_PENDING = 16;
+
+    private static final LruCache<Key, Measured> sCache = new LruCache<>(MAX_ENTRIES);
+    // 已经提交、还没排版完的纯文字，由sCache保护
+    private static final HashSet<Key> sInFlight = new HashSet<>();
+    private static volatile Executor sExecutor;
+
+    /**
+     * 一段文字在某个宽度和字体下排版后的尺寸，不含TextView的padding。
+     */
+    static final class Measured {
+        final int width;
+        final int height;
+
+        Measured(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private ToastTextPrefetcher() {
+    }
+
+    /**
+     * 在后台线程排版textView将要显示的text，已经缓存过时什么也不做。可以在任意线程调用，
+     * 但textView此时不能正在被其他线程修改。
+     */
+    static void prefetch(TextView textView, CharSequence text) {
+        if (text == null || text.length() == 0) {
+            return;
+        }
+        int width = getAvailableWidth(textView);
+        if (width <= 0) {
+            return;
+        }
+        final boolean spanned = text instanceof Spanned;
+        final Key key = spanned ? null : new Key(text, width, textView.getPaint());
+        if (key != null) {
+            synchronized (sCache) {
+                if (sCache.get(key) != null || !sInFlight.add(key)) {
+                    return;
+                }
+            }
+        }
+        // 在调用线程上复制一份画笔和文字，后台线程不碰TextView和调用方的Spannable
+        final TextPaint paint = new TextPaint(textView.getPaint());
+        final CharSequence snapshot = spanned ? new SpannedString(text) : key.text;
+        final int layoutWidth = width;
+        final float spacingMult;
+        final float spacingAdd;
+        final boolean includePad;
+        if (Build.VERSION.SDK_INT >= 16) {
+            spacingMult = textView.getLineSpacingMultiplier();
+            spacingAdd = textView.getLineSpacingExtra();
+            includePad = textView.getIncludeFontPadding();
+        } else {
+            spacingMult = 1f;
+            spacingAdd = 0f;
+            includePad = true;
+        }
+        try {
+            getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    Measured measured = null;
+                    try {
+                        Layout layout = new StaticLayout(snapshot, paint, layoutWidth,
+                                Layout.Alignment.ALIGN_NORMAL, spacingMult, spacingAdd, includePad);
+                        if (key == null) {
+                            return;
+                        }
+                        float maxLineWidth = 0;
+                        for (int i = 0; i < layout.getLineCount(); i++) {
+                            maxLineWidth = Math.max(maxLineWidth, layout.getLineWidth(i));
+                        }
+                        measured = new Measured((int) Math.ceil(maxLineWidth), layout.getHeight());
+                    } finally {
+                        if (key != null) {
+                            synchronized (sCache) {
+                                if (measured != null) {
+                                    sCache.put(key, measured);
+                                }
+                                sInFlight.remove(key);
+                            }
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 等待的任务已经满了，放弃这次预热，显示时主线程照常排版
+            if (key != null) {
+                synchronized (sCache) {
+                    sInFlight.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return textView显示text时的尺寸，还没排版好或者是带样式的文字时返回null
+     */
+    static Measured get(TextView textView, CharSequence text) {
+        if (text == null || text.length() == 0 || text instanceof Spanned) {
+            return null;
+        }
+        Key key = new Key(text.toString(), getAvailableWidth(textView), textView.getPaint());
+        synchronized (sCache) {
+            return sCache.get(key);
+        }
+    }
+
+    static void clear() {
+        synchronized (sCache) {
+            sCache.evictAll();
+        }
+    }
+
+    /**
+     * Toast的窗口是WRAP_CONTENT的，文字最多能用的宽度是屏幕宽度减去TextView和外层背景的padding。
+     */
+    private static int getAvailableWidth(TextView textView) {
+        int width = textView.getResources().getDisplayMetrics().widthPixels
+                - textView.getTotalPaddingLeft() - textView.getTotalPaddingRight();
+        if (textView.getParent() instanceof View) {
+            View parent = (View) textView.getParent();
+            width -= parent.getPaddingLeft() + parent.getPaddingRight();
+        }
+        return width;
+    }
+
+    private static Executor getExecutor() {
+        Executor executor = sExecutor;
+        if (executor == null) {
+            synchronized (ToastTextPrefetcher.class) {
+                executor = sExecutor;
+                if (executor == null) {
+                    // 一个低优先级线程就够了，空闲一段时间后退出
+                    ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+                            new ArrayBlockingQueue<Runnable>(MAX_PENDING), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            Thread thread = new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, "MoaToast-prefetch");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                    pool.allowCoreThreadTimeOut(true);
+                    sExecutor = executor = pool;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * 缓存的key，只用于纯文字，按内容比较；画笔只比较影响排版的几项。
+     */
+    private static final class Key {
+        final String text;
+        final int width;
+        final float textSize;
+        final float textScaleX;
+        final Typeface typeface;
+        final int flags;
+
+        Key(CharSequence text, int width, TextPaint paint) {
+            this.text = text.toString();
+            this.width = width;
+            this.textSize = paint.getTextSize();
+            this.textScaleX = paint.getTextScaleX();
+            this.typeface = paint.getTypeface();
+            this.flags = paint.getFlags();
+        }
+
+        @Override
+        public int hashCode() {
+            int result = text.hashCode();
+            result = 31 * result + width;
+            result = 31 * result + Float.floatToIntBits(textSize);
+            result = 31 * result + Float.floatToIntBits(textScaleX);
+            result = 31 * result + (typeface != null ? typeface.hashCode() : 0);
+            result = 31 * result + flags;
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return width == other.width
+                    && textSize == other.textSize
+                    && textScaleX == other.textScaleX
+                    && flags == other.flags
+                    && (typeface == null ? other.typeface == null : typeface.equals(other.typeface))
+                    && text.equals(other.text);
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.tzy.toast;
+
+/**
+ * 类描述：{@link ToastScheduler}的所有定时（显示时长到期、排队超时）共用的哈希时间轮。
+ * <p/>
+ * 原来每个正在显示的记录都在Executor上单独排一个任务，每次重新计时都要先cancel再schedule，
+ * 在Android上就是Handler.removeCallbacks（要扫描整个消息队列）加一个新的Message。这里所有定时都挂在
+ * 一个按tick分桶的轮子上，Executor上永远只排一个任务，时间是最早的那个到期时间：
+ * <ul>
+ * <li>添加和取消都只是链表操作，O(1)，只有新的定时比已排的任务更早时才需要重排那一个任务</li>
+ * <li>任务执行时一次处理所有已经到期的定时，同一时刻到期的几个不再各自唤醒一次</li>
+ * <li>被取消的定时不会去动Executor，已排的任务到时发现没有到期的就按下一个最早的时间重排</li>
+ * </ul>
+ * 定时按{@link Timer#expiresAt}精确到期，tick只决定分桶。不是线程安全的，调用方负责加锁，
+ * Executor上的任务也要先拿同一把锁再调用{@link #expire(long)}。
+ */
+final class ToastTimerWheel {
+    static final long DEFAULT_TICK_MILLIS = 10;
+    // 512个tick，一圈5.12秒，正常的显示时长都在一圈以内
+    static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private static final int NOT_SCHEDULED = -1;
+    private static final int DUE = -2;
+
+    /**
+     * 挂在时间轮上的定时，侵入式链表节点，同一时间只能挂一次。
+     */
+    abstract static class Timer {
+        long expiresAt;
+        private long tick;
+        // 所在的桶，NOT_SCHEDULED表示没有挂在轮上，DUE表示已经到期、正在等待回调
+        private int bucket = NOT_SCHEDULED;
+        private Timer prev;
+        private Timer next;
+
+        final boolean isScheduled() {
+            return bucket != NOT_SCHEDULED;
+        }
+
+        /**
+         * 到期时在{@link #expire(long)}里调用，这时已经从轮上摘下，可以重新schedule。
+         */
+        abstract void onExpired();
+    }
+
+    private final ToastScheduler.Executor mExecutor;
+    private final Runnable mTick;
+    private final long mTickMillis;
+    private final int mMask;
+    // 每个桶是一个双向链表，按schedule的先后排列
+    private final Timer[] mBuckets;
+    private final Timer[] mBucketTails;
+    // 已经到期、还没回调的定时
+    private Timer mDueHead;
+    private Timer mDueTail;
+    private int mCount;
+    // 这之前的tick都已经处理过了
+    private long mCurrentTick;
+    // Executor上那一个任务的时间，没有时为Long.MAX_VALUE
+    private long mArmedAt = Long.MAX_VALUE;
+    // 正在expire，回调里的schedule和cancel先不动Executor，结束时统一重排
+    private boolean mExpiring;
+
+    /**
+     * @param tick 在Executor上执行的任务，拿到锁之后调用{@link #expire(long)}
+     */
+    ToastTimerWheel(ToastScheduler.Executor executor, Runnable tick) {
+        this(executor, tick, DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param wheelSize 必须是2的幂
+     */
+    ToastTimerWheel(ToastScheduler.Executor executor, Runnable tick, long tickMillis, int wheelSize) {
+        if (tickMillis <= 0 || wheelSize <= 0 || (wheelSize & (wheelSize - 1)) != 0) {
+            throw new IllegalArgumentException("tickMillis=" + tickMillis + " wheelSize=" + wheelSize);
+        }
+        mExecutor = executor;
+        mTick = tick;
+        mTickMillis = tickMillis;
+        mMask = wheelSize - 1;
+        mBuckets = new Timer[wheelSize];
+        mBucketTails = new Timer[wheelSize];
+    }
+
+    /**
+     * 在deadline到期，已经挂在轮上时改成新的时间。
+     */
+    void schedule(Timer timer, long deadline) {
+        if (timer.isScheduled()) {
+            unlink(timer);
+        } else {
+            mCount++;
+        }
+        timer.expiresAt = deadline;
+        // 已经过去的时间挂到当前tick上，下一次expire一定会扫到
+        timer.tick = Math.max(deadline / mTickMillis, mCurrentTick);
+        int bucket = (int) (timer.tick & mMask);
+        timer.bucket = bucket;
+        timer.prev = mBucketTails[bucket];
+        timer.next = null;
+        if (timer.prev != null) {
+            timer.prev.next = timer;
+        } else {
+            mBuckets[bucket] = timer;
+        }
+        mBucketTails[bucket] = timer;
+        if (!mExpiring && deadline < mArmedAt) {
+            arm(deadline);
+        }
+    }
+
+    /**
+     * 取消定时，没有挂在轮上时什么也不做。
+     */
+    void cancel(Timer timer) {
+        if (!timer.isScheduled()) {
+            return;
+        }
+        unlink(timer);
+        timer.bucket = NOT_SCHEDULED;
+        if (--mCount == 0 && !mExpiring) {
+            disarm();
+        }
+    }
+
+    /**
+     * 取消所有定时，不回调。
+     */
+    void clear() {
+        for (int i = 0; i < mBuckets.length; i++) {
+            clearList(mBuckets[i]);
+            mBuckets[i] = null;
+            mBucketTails[i] = null;
+        }
+        clearList(mDueHead);
+        mDueHead = null;
+        mDueTail = null;
+        mCount = 0;
+        disarm();
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    /**
+     * 回调所有到期时间不晚于now的定时，然后按剩下的最早的时间重新排任务。
+     * 回调里可以schedule和cancel，包括取消同一批里还没回调的定时。
+     */
+    void expire(long now) {
+        mArmedAt = Long.MAX_VALUE;
+        long nowTick = now / mTickMillis;
+        // 超过一圈没有处理时每个桶都要看一遍
+        long lastTick = Math.min(nowTick, mCurrentTick + mMask);
+        for (long t = mCurrentTick; t <= lastTick; t++) {
+            collectDue(mBuckets[(int) (t & mMask)], now);
+        }
+        mCurrentTick = Math.max(mCurrentTick, nowTick);
+
+        mExpiring = true;
+        try {
+            Timer timer;
+            while ((timer = mDueHead) != null) {
+                unlink(timer);
+                timer.bucket = NOT_SCHEDULED;
+                mCount--;
+                timer.onExpired();
+            }
+        } finally {
+            mExpiring = false;
+        }
+
+        if (mCount > 0) {
+            arm(earliestDeadline());
+        } else {
+            disarm();
+        }
+    }
+
+    private void collectDue(Timer head, long now) {
+        Timer timer = head;
+        while (timer != null) {
+            Timer next = timer.next;
+            if (timer.expiresAt <= now) {
+                unlink(timer);
+                addDue(timer);
+            }
+            timer = next;
+        }
+    }
+
+    /**
+     * 按到期时间插入到期链表，时间相同的保持schedule的先后，和每个定时单独排任务时的顺序一致。
+     */
+    private void addDue(Timer timer) {
+        Timer prev = mDueTail;
+        while (prev != null && prev.expiresAt > timer.expiresAt) {
+            prev = prev.prev;
+        }
+        timer.bucket = DUE;
+        timer.prev = prev;
+        timer.next = prev != null ? prev.next : mDueHead;
+        if (timer.next != null) {
+            timer.next.prev = timer;
+        } else {
+            mDueTail = timer;
+        }
+        if (prev != null) {
+            prev.next = timer;
+        } else {
+            mDueHead = timer;
+        }
+    }
+
+    /**
+     * 从当前tick往后找第一个有定时的tick，一圈以外的定时很少，找不到时才全部扫一遍。
+     */
+    private long earliestDeadline() {
+        for (long t = mCurrentTick; t <= mCurrentTick + mMask; t++) {
+            long earliest = Long.MAX_VALUE;
+            for (Timer timer = mBuckets[(int) (t & mMask)]; timer != null; timer = timer.next) {
+                if (timer.tick == t && timer.expiresAt < earliest) {
+                    earliest = timer.expiresAt;
+                }
+            }
+            if (earliest != Long.MAX_VALUE) {
+                return earliest;
+            }
+        }
+        long earliest = Long.MAX_VALUE;
+        for (Timer head : mBuckets) {
+            for (Timer timer = head; timer != null; timer = timer.next) {
+                earliest = Math.min(earliest, timer.expiresAt);
+            }
+        }
+        return earliest;
+    }
+
+    private void arm(long when) {
+        if (mArmedAt != Long.MAX_VALUE) {
+            mExecutor.cancel(mTick);
+        }
+        mArmedAt = when;
+        mExecutor.schedule(mTick, when);
+    }
+
+    private void disarm() {
+        if (mArmedAt != Long.MAX_VALUE) {
+            mExecutor.cancel(mTick);
+            mArmedAt = Long.MAX_VALUE;
+        }
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else if (timer.bucket == DUE) {
+            mDueHead = timer.next;
+        } else {
+            mBuckets[timer.bucket] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        } else if (timer.bucket == DUE) {
+            mDueTail = timer.prev;
+        } else {
+            mBucketTails[timer.bucket] = timer.prev;
+        }
+        timer.prev = null;
+        timer.next = null;
+    }
+
+    private static void clearList(Timer head) {
+        Timer timer = head;
+        while (timer != null) {
+            Timer next = timer.next;
+            timer.prev = null;
+            timer.next = null;
+            timer.bucket = NOT_SCHEDULED;
+            timer = next;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.tzy.toast;
+
+import android.os.Build;
+import android.os.Trace;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+
+/**
+ * 类描述：MoaToast在systrace/Perfetto里的埋点。
+ * <p/>
+ * 主线程上的工作（handleShow、创建Dialog、无障碍事件、handleHide等）用{@link #beginSection}/{@link #endSection}
+ * 包起来，API 18以下什么也不做；没有在抓trace时Trace.beginSection本身只是一次标志判断。
+ * <p/>
+ * 另外每个ToastRecord从入队到显示、从显示到隐藏各是一段异步slice，名字分别是{@link #QUEUED}和{@link #SHOWN}，
+ * cookie是记录的id，可以和同一时间的帧对照。异步slice的API是API 29才公开的，这里统一通过反射调用：
+ * API 29及以上用公开的isEnabled/beginAsyncSection，18到28用隐藏的isTagEnabled/asyncTraceBegin。
+ * 反射拿不到时不输出异步slice。
+ * <p/>
+ * 是否在抓trace不在每个事件上查：{@link #refreshAsyncEnabled}最多每{@link #REFRESH_INTERVAL_MILLIS}反射查一次并缓存，
+ * ToastManager在入队时调用它，只有状态变成在抓trace时才给队列装上{@link #wrapMetrics}这一层。
+ * 没在抓trace时队列里没有这一层，用户也没注册指标时队列的埋点仍然只是一次null判断。
+ * 刚开始抓trace的最多一秒内入队的Toast没有异步slice。
+ */
+final class ToastTrace {
+    private static final String TAG = "ToastTrace";
+
+    static final String QUEUED = "MoaToast queued";
+    static final String SHOWN = "MoaToast shown";
+
+    // android.os.Trace.TRACE_TAG_APP
+    private static final long TRACE_TAG_APP = 1L << 12;
+    private static final int API_Q = 29;
+    private static final boolean SECTIONS_SUPPORTED = Build.VERSION.SDK_INT >= 18;
+    static final long REFRESH_INTERVAL_MILLIS = 1000;
+
+    private static Method sIsEnabled;
+    private static Object[] sIsEnabledArgs;
+    private static Method sAsyncBegin;
+    private static Method sAsyncEnd;
+    private static volatile boolean sAsyncSupported;
+    // 上一次反射查到的结果和查询的时间，几个线程同时刷新时最多多查一次
+    private static volatile boolean sAsyncEnabled;
+    private static volatile long sLastRefresh = Long.MIN_VALUE / 2;
+
+    static {
+        if (SECTIONS_SUPPORTED) {
+            try {
+                if (Build.VERSION.SDK_INT >= API_Q) {
+                    sIsEnabled = Trace.class.getMethod("isEnabled");
+                    sIsEnabledArgs = new Object[0];
+                    sAsyncBegin = Trace.class.getMethod("beginAsyncSection", String.class, int.class);
+                    sAsyncEnd = Trace.class.getMethod("endAsyncSection", String.class, int.class);
+                } else {
+                    sIsEnabled = Trace.class.getMethod("isTagEnabled", long.class);
+                    // 复用同一个参数数组，isEnabled不用每次装箱
+                    sIsEnabledArgs = new Object[]{TRACE_TAG_APP};
+                    sAsyncBegin = Trace.class.getMethod("asyncTraceBegin", long.class, String.class, int.class);
+                    sAsyncEnd = Trace.class.getMethod("asyncTraceEnd", long.class, String.class, int.class);
+                }
+                sAsyncSupported = true;
+            } catch (Exception e) {
+                Log.w(TAG, "Async trace sections unavailable", e);
+            }
+        }
+    }
+
+    private ToastTrace() {
+    }
+
+    static void beginSection(String name) {
+        if (SECTIONS_SUPPORTED) {
+            Trace.beginSection(name);
+        }
+    }
+
+    static void endSection() {
+        if (SECTIONS_SUPPORTED) {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * @return 缓存的是否正在抓trace并且能输出异步slice，不反射
+     */
+    static boolean isAsyncEnabled() {
+        return sAsyncEnabled;
+    }
+
+    /**
+     * 距离上次查询超过{@link #REFRESH_INTERVAL_MILLIS}时重新查一次是否在抓trace，否则只是一次时间比较。
+     *
+     * @return 缓存的状态是否变了
+     */
+    static boolean refreshAsyncEnabled(long uptimeMillis) {
+        if (uptimeMillis - sLastRefresh < REFRESH_INTERVAL_MILLIS) {
+            return false;
+        }
+        sLastRefresh = uptimeMillis;
+        boolean enabled = queryAsyncEnabled();
+        if (enabled == sAsyncEnabled) {
+            return false;
+        }
+        sAsyncEnabled = enabled;
+        return true;
+    }
+
+    private static boolean queryAsyncEnabled() {
+        if (!sAsyncSupported) {
+            return false;
+        }
+        try {
+            return (Boolean) sIsEnabled.invoke(null, sIsEnabledArgs);
+        } catch (Exception e) {
+            disableAsync(e);
+            return false;
+        }
+    }
+
+    static void beginAsyncSection(String name, long recordId) {
+        invokeAsync(sAsyncBegin, name, recordId);
+    }
+
+    static void endAsyncSection(String name, long recordId) {
+        invokeAsync(sAsyncEnd, name, recordId);
+    }
+
+    private static void invokeAsync(Method method, String name, long recordId) {
+        if (!sAsyncSupported) {
+            return;
+        }
+        int cookie = (int) recordId;
+        try {
+            if (Build.VERSION.SDK_INT >= API_Q) {
+                method.invoke(null, name, cookie);
+            } else {
+                method.invoke(null, TRACE_TAG_APP, name, cookie);
+            }
+        } catch (Exception e) {
+            disableAsync(e);
+        }
+    }
+
+    private static void disableAsync(Exception e) {
+        sAsyncSupported = false;
+        sAsyncEnabled = false;
+        Log.w(TAG, "Disabling async trace sections", e);
+    }
+
+    /**
+     * 在metrics外面包一层，把队列的事件转成每个记录的异步slice。缓存的状态是没在抓trace时原样返回。
+     *
+     * @param metrics 用户注册的指标回调，可以为null
+     */
+    static ToastMetrics wrapMetrics(ToastMetrics metrics) {
+        return sAsyncEnabled ? new TracingMetrics(metrics) : metrics;
+    }
+
+    private static final class TracingMetrics implements ToastMetrics {
+        private final ToastMetrics mDelegate;
+
+        TracingMetrics(ToastMetrics delegate) {
+            mDelegate = delegate;
+        }
+
+        @Override
+        public void onEnqueued(long recordId, int queueDepth) {
+            if (isAsyncEnabled()) {
+                beginAsyncSection(QUEUED, recordId);
+            }
+            if (mDelegate != null) {
+                mDelegate.onEnqueued(recordId, queueDepth);
+            }
+        }
+
+        @Override
+        public void onShown(long recordId, long waitMillis, int queueDepth) {
+            if (isAsyncEnabled()) {
+                endAsyncSection(QUEUED, recordId);
+                beginAsyncSection(SHOWN, recordId);
+            }
+            if (mDelegate != null) {
+                mDelegate.onShown(recordId, waitMillis, queueDepth);
+            }
+        }
+
+        @Override
+        public void onHidden(long recordId, long visibleMillis, int queueDepth) {
+            if (isAsyncEnabled()) {
+                endAsyncSection(SHOWN, recordId);
+            }
+            if (mDelegate != null) {
+                mDelegate.onHidden(recordId, visibleMillis, queueDepth);
+            }
+        }
+
+        @Override
+        public void onDropped(long recordId, int reason) {
+            // 入队时就被拒绝的没有开始过slice
+            if (recordId != ID_NONE && isAsyncEnabled()) {
+                endAsyncSection(QUEUED, recordId);
+            }
+            if (mDelegate != null) {
+                mDelegate.onDropped(recordId, reason);
+            }
+        }
+
+        @Override
+        public void onShowCost(long nanos) {
+            if (mDelegate != null) {
+                mDelegate.onShowCost(nanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.tzy.toast;
+
+import android.app.Activity;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewParent;
+import android.widget.TextView;
+
+import java.util.ArrayDeque;
+
+/**
+ * 类描述：每个Activity一个的transient_notification视图池。
+ * <p/>
+ * makeText每次都要查找LayoutInflater、用getIdentifier查布局id、inflate再findViewById，
+ * 这些都在主线程上。这里把inflate好的视图和它的TextView缓存起来，Toast隐藏后视图回到池里，
+ * 下一个Toast直接取用。池的大小有上限，池里的视图还要计入{@link ToastMemoryBudget}，
+ * Activity销毁时整个池被释放。
+ * <p/>
+ * 池是空的时候，{@link #prepare}在一个共用的后台线程上inflate和绑定文字，完成后再回到主线程交给调用方，
+ * 和support库的AsyncLayoutInflater一样用clone出来的LayoutInflater。后台inflate失败（比如布局里有
+ * 构造时就要创建Handler的View）时退回到主线程上inflate。
+ */
+final class ToastViewPool {
+    private static final String TAG = "ToastViewPool";
+    static final int MAX_POOL_SIZE = 3;
+
+    /**
+     * 为false时{@link #prepare}总是在调用线程上同步inflate，即原来的行为。
+     */
+    static volatile boolean sAsyncInflation = true;
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+    private static Handler sWorker;
+
+    /**
+     * {@link #prepare}异步准备好视图后在主线程上的回调。
+     */
+    interface Callback {
+        /**
+         * @param holder 已经绑定了文字，并且owner已经设好
+         */
+        void onViewReady(ViewHolder holder);
+    }
+
+    /**
+     * 挂在视图上的holder，缓存了TextView，并记录当前是谁在用这个视图。
+     */
+    static final class ViewHolder {
+        final View view;
+        final TextView message;
+        Object owner;
+        // 在池里时占用的内存预算
+        long retainedBytes;
+
+        ViewHolder(View view) {
+            this.view = view;
+            this.message = (TextView) view.findViewById(android.R.id.message);
+        }
+    }
+
+    private final Activity mContext;
+    private final ArrayDeque<ViewHolder> mPool = new ArrayDeque<>(MAX_POOL_SIZE);
+    private LayoutInflater mInflater;
+    // 后台线程专用的inflater，和主线程的分开
+    private LayoutInflater mAsyncInflater;
+
+    ToastViewPool(Activity context) {
+        mContext = context;
+    }
+
+    /**
+     * 取一个视图给owner使用，池是空的时候才inflate新的。
+     */
+    synchronized ViewHolder acquire(Object owner) {
+        ViewHolder holder = mPool.pollFirst();
+        if (holder == null) {
+            holder = inflate(getInflater());
+        } else {
+            ToastMemoryBudget.release(holder.retainedBytes);
+            holder.retainedBytes = 0;
+        }
+        holder.owner = owner;
+        return holder;
+    }
+
+    /**
+     * 取一个绑定好text的视图给owner使用。池里有空闲视图时直接绑定并返回；
+     * 否则在后台线程inflate并绑定，返回null，准备好后在主线程回调callback。
+     */
+    ViewHolder prepare(final Object owner, final CharSequence text, final Callback callback) {
+        synchronized (this) {
+            if (!mPool.isEmpty() || !sAsyncInflation) {
+                ViewHolder holder = acquire(owner);
+                holder.message.setText(text);
+                ToastTextPrefetcher.prefetch(holder.message, text);
+                return holder;
+            }
+            if (mAsyncInflater == null) {
+                mAsyncInflater = LayoutInflater.from(mContext).cloneInContext(mContext);
+            }
+        }
+        final LayoutInflater inflater = mAsyncInflater;
+        getWorker().post(new Runnable() {
+            @Override
+            public void run() {
+                ViewHolder inflated;
+                try {
+                    inflated = inflate(inflater);
+                    inflated.message.setText(text);
+                    ToastTextPrefetcher.prefetch(inflated.message, text);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Async inflation failed, falling back to the main thread", e);
+                    inflated = null;
+                }
+                final ViewHolder result = inflated;
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        ViewHolder holder = result;
+                        if (holder == null) {
+                            holder = inflate(getInflater());
+                            holder.message.setText(text);
+                        }
+                        synchronized (ToastViewPool.this) {
+                            holder.owner = owner;
+                        }
+                        callback.onViewReady(holder);
+                    }
+                });
+            }
+        });
+        return null;
+    }
+
+    /**
+     * 把owner用完的视图放回池里。视图不是从池里取的、或者已经被别人取走时什么也不做。
+     */
+    synchronized void release(View view, Object owner) {
+        ViewHolder holder = holderOf(view);
+        if (holder == null || holder.owner != owner) {
+            return;
+        }
+        holder.owner = null;
+        // 视图还挂在上一个Dialog的content上，不摘下来的话下次setContentView会抛异常
+        ViewParent parent = view.getParent();
+        if (parent instanceof ViewGroup) {
+            ((ViewGroup) parent).removeView(view);
+        }
+        if (mPool.size() < MAX_POOL_SIZE) {
+            long bytes = ToastMemoryBudget.estimate(view);
+            if (ToastMemoryBudget.tryRetain(bytes)) {
+                holder.retainedBytes = bytes;
+                mPool.addFirst(holder);
+            }
+        }
+    }
+
+    synchronized void clear() {
+        for (ViewHolder holder : mPool) {
+            holder.owner = null;
+            ToastMemoryBudget.release(holder.retainedBytes);
+            holder.retainedBytes = 0;
+        }
+        mPool.clear();
+    }
+
+    static ViewHolder holderOf(View view) {
+        if (view == null) {
+            return null;
+        }
+        Object tag = view.getTag(R.id.moa_toast_holder);
+        return tag instanceof ViewHolder ? (ViewHolder) tag : null;
+    }
+
+    private LayoutInflater getInflater() {
+        if (mInflater == null) {
+            mInflater = (LayoutInflater) mContext.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+        }
+        return mInflater;
+    }
+
+    private ViewHolder inflate(LayoutInflater inflater) {
+        View v = inflater.inflate(ToastResources.getNotificationLayoutId(mContext), null);
+        ViewHolder holder = new ViewHolder(v);
+        v.setTag(R.id.moa_toast_holder, holder);
+        return holder;
+    }
+
+    private static synchronized Handler getWorker() {
+        if (sWorker == null) {
+            HandlerThread thread = new HandlerThread("MoaToast-inflater", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sWorker = new Handler(thread.getLooper());
+        }
+        return sWorker;
+    }
+}
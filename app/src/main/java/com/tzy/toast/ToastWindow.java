@@ -0,0 +1,171 @@
+package com.tzy.toast;
+
+import android.app.Activity;
+import android.app.Dialog;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Gravity;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewParent;
+import android.view.WindowManager;
+import android.widget.FrameLayout;
+
+/**
+ * 类描述：一个Activity上所有MoaToast共用的Dialog窗口，即{@link ToastRenderer#DIALOG}。
+ * <p/>
+ * 原来每次handleShow都要dismiss旧的Dialog再new一个新的，也就是每个Toast都要经过WindowManager
+ * 添加、移除一次窗口。这里Toast隐藏后窗口只是被hide()，下一个Toast来的时候直接替换content和
+ * LayoutParams再show()，窗口本身保持不变；空闲超过{@link #sIdleTimeout}或者Activity结束时才真正dismiss。
+ * 空闲的窗口计入{@link ToastMemoryBudget}，预算不够时隐藏后立即dismiss。
+ * <p/>
+ * 窗口的content是一个FrameLayout，上一个Toast退出时和下一个Toast同时在里面，窗口的LayoutParams按新的Toast设置。
+ * 最后一个视图移除后窗口才进入空闲。所有方法都必须在主线程调用。
+ */
+final class ToastWindow implements ToastRenderer, ToastAnimator.ExitListener {
+    private static final String TAG = "ToastWindow";
+
+    static final long DEFAULT_IDLE_TIMEOUT = 3000;
+
+    /**
+     * 窗口空闲多久后销毁，为0时每个Toast隐藏后立即销毁窗口，即原来的行为。
+     */
+    static volatile long sIdleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    private final Activity mActivity;
+    private final Callback mCallback;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mTeardown = new Runnable() {
+        @Override
+        public void run() {
+            dismiss();
+        }
+    };
+
+    private Dialog mDialog;
+    private FrameLayout mContainer;
+    // 空闲期间占用的内存预算
+    private long mRetainedBytes;
+
+    ToastWindow(Activity activity, Callback callback) {
+        mActivity = activity;
+        mCallback = callback;
+    }
+
+    /**
+     * 显示view，已经有窗口时只往content里加view、替换LayoutParams。
+     */
+    @Override
+    public void show(View view, WindowManager.LayoutParams params) {
+        mHandler.removeCallbacks(mTeardown);
+        releaseBudget();
+        if (mDialog == null) {
+            if (MoaToast.localLOGV) Log.v(TAG, "create dialog for " + mActivity);
+            ToastTrace.beginSection("MoaToast.createDialog");
+            try {
+                mDialog = new Dialog(mActivity, R.style.moaToastDialog);
+                mContainer = new FrameLayout(mActivity);
+                mDialog.setContentView(mContainer);
+            } finally {
+                ToastTrace.endSection();
+            }
+        }
+        ViewParent parent = view.getParent();
+        if (parent != mContainer) {
+            if (parent instanceof ViewGroup) {
+                ((ViewGroup) parent).removeView(view);
+            }
+            ViewGroup.LayoutParams lp = view.getLayoutParams();
+            mContainer.addView(view, lp instanceof FrameLayout.LayoutParams ? lp
+                    : new FrameLayout.LayoutParams(ViewGroup.LayoutParams.WRAP_CONTENT,
+                    ViewGroup.LayoutParams.WRAP_CONTENT, Gravity.CENTER));
+        }
+        mDialog.getWindow().setAttributes(params);
+        // 窗口被hide()过时，show()只是把decor重新设为可见，不会再添加一次窗口
+        ToastTrace.beginSection("MoaToast.showDialog");
+        try {
+            mDialog.show();
+        } finally {
+            ToastTrace.endSection();
+        }
+        ToastAnimator.enter(view);
+    }
+
+    /**
+     * 隐藏view，view已经不在这个窗口里时什么也不做。
+     */
+    @Override
+    public boolean hide(View view) {
+        if (mDialog == null || view.getParent() != mContainer) {
+            return false;
+        }
+        if (!mActivity.isFinishing() && ToastAnimator.exit(view, this)) {
+            return true;
+        }
+        removeAndMaybeHide(view);
+        return false;
+    }
+
+    @Override
+    public void onExitEnd(View view) {
+        removeAndMaybeHide(view);
+        mCallback.onViewRemoved(view);
+    }
+
+    /**
+     * 移除view，窗口里没有别的视图时隐藏窗口。
+     */
+    private void removeAndMaybeHide(View view) {
+        if (mContainer == null || view.getParent() != mContainer) {
+            return;
+        }
+        mContainer.removeView(view);
+        if (mContainer.getChildCount() > 0 || mActivity.isFinishing()) {
+            return;
+        }
+        long idleTimeout = sIdleTimeout;
+        if (idleTimeout <= 0) {
+            dismiss();
+            return;
+        }
+        View decor = mDialog.getWindow().getDecorView();
+        long bytes = ToastMemoryBudget.estimate(decor) + ToastMemoryBudget.WINDOW_OVERHEAD_BYTES;
+        if (!ToastMemoryBudget.tryRetain(bytes)) {
+            dismiss();
+            return;
+        }
+        mRetainedBytes = bytes;
+        mDialog.hide();
+        mHandler.postDelayed(mTeardown, idleTimeout);
+    }
+
+    /**
+     * 销毁窗口，Activity销毁时也会调用。
+     */
+    @Override
+    public void dismiss() {
+        mHandler.removeCallbacks(mTeardown);
+        releaseBudget();
+        if (mContainer != null) {
+            // 正在退出的视图不再回调，整个池都会被清掉
+            for (int i = 0; i < mContainer.getChildCount(); i++) {
+                ToastAnimator.cancel(mContainer.getChildAt(i));
+            }
+            mContainer.removeAllViews();
+            mContainer = null;
+        }
+        if (mDialog != null) {
+            if (MoaToast.localLOGV) Log.v(TAG, "dismiss dialog for " + mActivity);
+            if (mDialog.isShowing()) {
+                mDialog.dismiss();
+            }
+            mDialog = null;
+        }
+    }
+
+    private void releaseBudget() {
+        ToastMemoryBudget.release(mRetainedBytes);
+        mRetainedBytes = 0;
+    }
+}
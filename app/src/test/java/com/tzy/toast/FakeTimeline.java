@@ -0,0 +1,91 @@
+package com.tzy.toast;
+
+import java.util.PriorityQueue;
+
+/**
+ * 类描述：测试用的虚拟时钟，同时也是{@link ToastScheduler.Executor}。
+ * 任务只有在调用{@link #advanceBy(long)}等方法推进时间时才会在当前线程上执行，
+ * 所以不需要真的等待就能模拟任意长的时间。
+ */
+public class FakeTimeline implements ToastScheduler.Clock, ToastScheduler.Executor {
+    private final PriorityQueue<Task> mTasks = new PriorityQueue<>();
+    private long mNow;
+    private long mSequence;
+
+    @Override
+    public long uptimeMillis() {
+        return mNow;
+    }
+
+    @Override
+    public void schedule(Runnable task, long uptimeMillis) {
+        mTasks.add(new Task(task, Math.max(uptimeMillis, mNow), mSequence++));
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        for (Task t : mTasks) {
+            if (t.runnable == task) {
+                t.cancelled = true;
+            }
+        }
+    }
+
+    /**
+     * 推进时间，并按顺序执行这段时间内到期的所有任务。
+     */
+    public void advanceBy(long millis) {
+        advanceTo(mNow + millis);
+    }
+
+    public void advanceTo(long uptimeMillis) {
+        while (!mTasks.isEmpty() && mTasks.peek().when <= uptimeMillis) {
+            Task task = mTasks.poll();
+            mNow = task.when;
+            if (!task.cancelled) {
+                task.runnable.run();
+            }
+        }
+        mNow = Math.max(mNow, uptimeMillis);
+    }
+
+    /**
+     * 一直推进到没有待执行的任务为止。
+     */
+    public void runAll() {
+        while (!mTasks.isEmpty()) {
+            advanceTo(mTasks.peek().when);
+        }
+    }
+
+    public int pendingTasks() {
+        int count = 0;
+        for (Task t : mTasks) {
+            if (!t.cancelled) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static final class Task implements Comparable<Task> {
+        final Runnable runnable;
+        final long when;
+        final long sequence;
+        boolean cancelled;
+
+        Task(Runnable runnable, long when, long sequence) {
+            this.runnable = runnable;
+            this.when = when;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (when != other.when) {
+                return when < other.when ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.tzy.toast;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 20; i++) {
+            histogram.record(i);
+        }
+        assertEquals(20, histogram.getTotalCount());
+        assertEquals(10, histogram.getValueAtPercentile(50));
+        assertEquals(20, histogram.getValueAtPercentile(99));
+        assertEquals(20, histogram.getMaxValue());
+    }
+
+    @Test
+    public void largeValuesStayWithinRelativeError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        long[] values = {100, 2000, 3500, 1234567, 987654321L};
+        for (long value : values) {
+            histogram.reset();
+            histogram.record(value);
+            long recorded = histogram.getMaxValue();
+            assertTrue(value + " -> " + recorded, recorded <= value && recorded >= value * 0.96);
+        }
+        histogram.record(Long.MAX_VALUE);
+        assertTrue(histogram.getMaxValue() <= LatencyHistogram.MAX_TRACKABLE_VALUE);
+    }
+}
@@ -0,0 +1,218 @@
+package com.tzy.toast;
+
+import android.app.Activity;
+import android.app.Dialog;
+import android.content.Context;
+import android.content.res.Resources;
+import android.os.SystemClock;
+import android.util.AttributeSet;
+import android.view.LayoutInflater;
+import android.view.View;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowDialog;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.lang.management.ManagementFactory;
+import java.util.IdentityHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 类描述：MoaToast在UI线程上每个Toast的开销预算，在JVM上用Robolectric跑，不需要设备或显示器。
+ * <p/>
+ * 主线程的Looper是暂停的，makeText().show()之后由测试推进时间，和真机上一样经过ToastManager、队列、
+ * ToastPresenter和Dialog窗口。统计的是inflate的次数、新建的Dialog窗口数、getIdentifier的调用次数，
+ * 以及这个线程上分配的字节数。超出预算时测试失败，构建也就失败了。
+ * <p/>
+ * 稳定状态指视图池和窗口都已经建好、资源id已经缓存之后，一个接一个地显示Toast，这时前三项都应该是0。
+ * <p/>
+ * ToastManager是单例，限流的令牌桶和时间轮都假设时钟不会倒退，而Robolectric每个测试都把时钟重置回去，
+ * 所以每个测试开始时把时钟推到上一个测试结束的时间。
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class MoaToastBudgetTest {
+    private static final int WARM_UP = 3;
+    private static final int TOASTS = 20;
+    // Robolectric 3.0、sdk 21上测得稳定状态每个Toast约1,965,000字节（三次分别是1,960,296、1,967,110、1,968,151），
+    // 大部分是Robolectric拦截框架调用的开销；预算比它高25%左右，多出一次inflate或一个窗口由上面的测试直接检查
+    private static final long MAX_BYTES_PER_TOAST = 2400 * 1024;
+
+    static int sGetIdentifierCalls;
+    // 上一个测试结束时的时间
+    private static long sUptimeMillis;
+
+    private CountingActivity mActivity;
+
+    @Before
+    public void setUp() {
+        ShadowLooper.pauseMainLooper();
+        if (sUptimeMillis > SystemClock.uptimeMillis()) {
+            Robolectric.getForegroundThreadScheduler().advanceTo(sUptimeMillis);
+        }
+        // 后台inflate要等另一个线程，这里只关心主线程上的开销
+        MoaToast.setAsyncInflationEnabled(false);
+        mActivity = Robolectric.setupActivity(CountingActivity.class);
+    }
+
+    @After
+    public void tearDown() {
+        ToastManager.getInstance().cancelAllToasts();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        MoaToast.setAsyncInflationEnabled(true);
+        sUptimeMillis = SystemClock.uptimeMillis();
+    }
+
+    @Test
+    public void firstToastCreatesOneWindow() {
+        Counts before = Counts.take(mActivity);
+        showAndHide(0);
+        Counts used = Counts.take(mActivity).minus(before);
+
+        // 新建Dialog时它的decor也经过同一个inflater，所以这里不检查inflate的次数
+        assertEquals("windows", 1, used.windows);
+        // transient_notification和toast_y_offset各查一次，已经缓存过时是0
+        assertTrue("getIdentifier calls: " + used.getIdentifierCalls, used.getIdentifierCalls <= 2);
+    }
+
+    @Test
+    public void steadyStateToastsReuseViewAndWindow() {
+        for (int i = 0; i < WARM_UP; i++) {
+            showAndHide(i);
+        }
+        Counts before = Counts.take(mActivity);
+        for (int i = 0; i < TOASTS; i++) {
+            showAndHide(i);
+        }
+        Counts used = Counts.take(mActivity).minus(before);
+
+        assertEquals("inflations", 0, used.inflations);
+        assertEquals("windows", 0, used.windows);
+        assertEquals("getIdentifier calls", 0, used.getIdentifierCalls);
+    }
+
+    @Test
+    public void steadyStateToastsStayWithinAllocationBudget() {
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < WARM_UP; i++) {
+            showAndHide(i);
+        }
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < TOASTS; i++) {
+            showAndHide(i);
+        }
+        long perToast = (threadBean.getThreadAllocatedBytes(threadId) - before) / TOASTS;
+
+        assertTrue("Allocated " + perToast + " bytes per toast, budget is " + MAX_BYTES_PER_TOAST,
+                perToast <= MAX_BYTES_PER_TOAST);
+    }
+
+    /**
+     * 显示一个Toast，推进到它的退出动画结束为止。窗口的空闲超时比Toast的时长长，下一个Toast会复用同一个窗口，
+     * 退出完的视图也已经回到视图池。
+     */
+    private void showAndHide(int index) {
+        MoaToast.makeText(mActivity, "message " + index, MoaToast.LENGTH_SHORT).show();
+        ShadowLooper.runUiThreadTasks();
+        ShadowLooper.idleMainLooper(ToastScheduler.SHORT_DELAY);
+        ShadowLooper.idleMainLooper(ToastAnimator.MAX_DURATION_MILLIS);
+        ShadowLooper.runUiThreadTasks();
+    }
+
+    private static final class Counts {
+        int inflations;
+        int windows;
+        int getIdentifierCalls;
+
+        static Counts take(CountingActivity activity) {
+            Counts counts = new Counts();
+            counts.inflations = activity.mInflations;
+            IdentityHashMap<Dialog, Boolean> dialogs = new IdentityHashMap<>();
+            for (Dialog dialog : ShadowDialog.getShownDialogs()) {
+                dialogs.put(dialog, Boolean.TRUE);
+            }
+            counts.windows = dialogs.size();
+            counts.getIdentifierCalls = sGetIdentifierCalls;
+            return counts;
+        }
+
+        Counts minus(Counts other) {
+            Counts counts = new Counts();
+            counts.inflations = inflations - other.inflations;
+            counts.windows = windows - other.windows;
+            counts.getIdentifierCalls = getIdentifierCalls - other.getIdentifierCalls;
+            return counts;
+        }
+    }
+
+    /**
+     * 给LAYOUT_INFLATER_SERVICE装一个Factory2，每inflate一次布局，根视图会经过它一次（parent为null）。
+     * 视图池和Dialog都从Activity取inflater，所以两者的inflate都会被计数。getIdentifier也从Activity的Resources走，
+     * 换成{@link CountingResources}计数。
+     */
+    public static class CountingActivity extends Activity {
+        int mInflations;
+        private LayoutInflater mInflater;
+        private Resources mResources;
+
+        @Override
+        public Resources getResources() {
+            if (mResources == null) {
+                mResources = new CountingResources(super.getResources());
+            }
+            return mResources;
+        }
+
+        @Override
+        public Object getSystemService(String name) {
+            if (!LAYOUT_INFLATER_SERVICE.equals(name)) {
+                return super.getSystemService(name);
+            }
+            if (mInflater == null) {
+                mInflater = ((LayoutInflater) super.getSystemService(name)).cloneInContext(this);
+                mInflater.setFactory2(new LayoutInflater.Factory2() {
+                    @Override
+                    public View onCreateView(View parent, String name, Context context, AttributeSet attrs) {
+                        if (parent == null) {
+                            mInflations++;
+                        }
+                        return null;
+                    }
+
+                    @Override
+                    public View onCreateView(String name, Context context, AttributeSet attrs) {
+                        return onCreateView(null, name, context, attrs);
+                    }
+                });
+            }
+            return mInflater;
+        }
+    }
+
+    /**
+     * Robolectric 3.0里getIdentifier是真实的Resources代码，最终走到ShadowAssetManager（final，不能继承），
+     * 所以在Resources这一层计数。
+     */
+    static class CountingResources extends Resources {
+        CountingResources(Resources base) {
+            super(base.getAssets(), base.getDisplayMetrics(), base.getConfiguration());
+        }
+
+        @Override
+        public int getIdentifier(String name, String defType, String defPackage) {
+            sGetIdentifierCalls++;
+            return super.getIdentifier(name, defType, defPackage);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.tzy.toast;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ToastIngestQueue的测试：多个生产者并发入队，单个消费者取出，不丢失、不重复，每个生产者内部保持顺序。
+ */
+public class ToastIngestQueueTest {
+
+    @Test
+    public void singleThreadFifo() {
+        ToastIngestQueue<Item> queue = new ToastIngestQueue<>();
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+        for (int i = 0; i < 3; i++) {
+            queue.offer(new Item(0, i));
+        }
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, queue.poll().sequence);
+        }
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void concurrentProducersKeepPerProducerOrder() throws Exception {
+        final int producers = 4;
+        final int perProducer = 100000;
+        final ToastIngestQueue<Item> queue = new ToastIngestQueue<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++) {
+                        queue.offer(new Item(producer, i));
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        start.countDown();
+
+        int[] expected = new int[producers];
+        int received = 0;
+        while (received < producers * perProducer) {
+            Item item = queue.poll();
+            if (item == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(expected[item.producer], item.sequence);
+            expected[item.producer]++;
+            received++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    private static final class Item extends ToastIngestQueue.Node {
+        final int producer;
+        final int sequence;
+
+        Item(int producer, int sequence) {
+            this.producer = producer;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.tzy.toast;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ToastMemoryBudgetTest {
+
+    @After
+    public void tearDown() {
+        ToastMemoryBudget.release(ToastMemoryBudget.getRetainedBytes());
+        ToastMemoryBudget.setLimit(ToastMemoryBudget.DEFAULT_LIMIT_BYTES);
+    }
+
+    @Test
+    public void refusesToRetainBeyondLimit() {
+        ToastMemoryBudget.setLimit(100);
+        assertTrue(ToastMemoryBudget.tryRetain(60));
+        assertFalse(ToastMemoryBudget.tryRetain(60));
+        assertTrue(ToastMemoryBudget.tryRetain(40));
+        assertEquals(100, ToastMemoryBudget.getRetainedBytes());
+
+        ToastMemoryBudget.release(60);
+        assertTrue(ToastMemoryBudget.tryRetain(60));
+    }
+
+    @Test
+    public void zeroLimitRetainsNothing() {
+        ToastMemoryBudget.setLimit(0);
+        assertFalse(ToastMemoryBudget.tryRetain(1));
+        assertEquals(0, ToastMemoryBudget.getRetainedBytes());
+    }
+}
@@ -0,0 +1,167 @@
+package com.tzy.toast;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 检查稳定状态下入队、显示、超时和取消都不分配对象。用HotSpot的线程分配计数，不支持时跳过。
+ * <p/>
+ * FakeTimeline每次schedule都会new一个Task，这里换成只存一个任务的时钟，时间轮在Executor上本来也只排一个任务。
+ */
+public class ToastSchedulerAllocationTest {
+    private static final int PID = 1;
+    private static final String CONTEXT = "MainActivity@1";
+    private static final int WARM_UP = 1000;
+    private static final int CYCLES = 10000;
+
+    private com.sun.management.ThreadMXBean mThreadBean;
+    private SingleTaskTimeline mTimeline;
+    private ToastScheduler mScheduler;
+    private final IToastShower[] mShowers = new IToastShower[4];
+
+    @Before
+    public void setUp() {
+        Object bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        mThreadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(mThreadBean.isThreadAllocatedMemorySupported());
+        mThreadBean.setThreadAllocatedMemoryEnabled(true);
+
+        mTimeline = new SingleTaskTimeline();
+        mScheduler = new ToastScheduler(mTimeline, mTimeline);
+        for (int i = 0; i < mShowers.length; i++) {
+            mShowers[i] = new NoopShower();
+        }
+    }
+
+    @Test
+    public void showAndTimeoutDoNotAllocate() {
+        ToastScheduler.Options options = new ToastScheduler.Options();
+        runShowCycles(options, WARM_UP);
+        long before = allocatedBytes();
+        runShowCycles(options, CYCLES);
+        assertNoPerCycleAllocation(allocatedBytes() - before, CYCLES);
+    }
+
+    @Test
+    public void enqueueAndCancelDoNotAllocate() {
+        ToastScheduler.Options options = new ToastScheduler.Options();
+        runCancelCycles(options, WARM_UP);
+        long before = allocatedBytes();
+        runCancelCycles(options, CYCLES);
+        assertNoPerCycleAllocation(allocatedBytes() - before, CYCLES);
+    }
+
+    @Test
+    public void ownerTrackingDoesNotAllocatePerToast() {
+        Object owner = new Object();
+        ToastScheduler.Options options = new ToastScheduler.Options();
+        options.owner = owner;
+        options.tag = "sync";
+        runShowCycles(options, WARM_UP);
+        runCancelCycles(options, WARM_UP);
+        long before = allocatedBytes();
+        runShowCycles(options, CYCLES);
+        runCancelCycles(options, CYCLES);
+        assertNoPerCycleAllocation(allocatedBytes() - before, CYCLES * 2);
+        // owner要活到这里，否则中途被回收会换一个弱引用
+        assertEquals(owner, options.owner);
+    }
+
+    /**
+     * 每轮入队两个，第一个马上显示，然后推进时间让两个依次超时。
+     */
+    private void runShowCycles(ToastScheduler.Options options, int cycles) {
+        for (int i = 0; i < cycles; i++) {
+            mScheduler.enqueueToast(PID, CONTEXT, mShowers[0], options);
+            mScheduler.enqueueToast(PID, CONTEXT, mShowers[1], options);
+            mTimeline.advanceBy(ToastScheduler.SHORT_DELAY);
+            mTimeline.advanceBy(ToastScheduler.SHORT_DELAY);
+        }
+        assertEquals(0, mScheduler.size());
+    }
+
+    /**
+     * 每轮入队三个，取消正在显示的和一个排队中的，最后一个显示完。
+     */
+    private void runCancelCycles(ToastScheduler.Options options, int cycles) {
+        for (int i = 0; i < cycles; i++) {
+            mScheduler.enqueueToast(PID, CONTEXT, mShowers[0], options);
+            mScheduler.enqueueToast(PID, CONTEXT, mShowers[1], options);
+            mScheduler.enqueueToast(PID, CONTEXT, mShowers[2], options);
+            mScheduler.cancelToast(CONTEXT, mShowers[1]);
+            mScheduler.cancelToast(CONTEXT, mShowers[0]);
+            mTimeline.advanceBy(ToastScheduler.SHORT_DELAY);
+        }
+        assertEquals(0, mScheduler.size());
+    }
+
+    /**
+     * 一个对象至少16字节，平均每轮不到1字节就说明没有每次都分配的对象。
+     * 不直接要求0是因为JIT编译前后的切换偶尔会在这个线程上分配几百字节。
+     */
+    private static void assertNoPerCycleAllocation(long bytes, int cycles) {
+        assertTrue("Allocated " + bytes + " bytes in " + cycles + " cycles", bytes < cycles);
+    }
+
+    private long allocatedBytes() {
+        return mThreadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static final class NoopShower implements IToastShower {
+        @Override
+        public void show(int slot) {
+        }
+
+        @Override
+        public void hide() {
+        }
+    }
+
+    /**
+     * 只能排一个任务的虚拟时钟，schedule和cancel都不分配。
+     */
+    private static final class SingleTaskTimeline implements ToastScheduler.Clock, ToastScheduler.Executor {
+        private long mNow;
+        private Runnable mTask;
+        private long mTaskTime;
+
+        @Override
+        public long uptimeMillis() {
+            return mNow;
+        }
+
+        @Override
+        public void schedule(Runnable task, long uptimeMillis) {
+            if (mTask != null && mTask != task) {
+                throw new IllegalStateException("Only one task is supported");
+            }
+            mTask = task;
+            mTaskTime = Math.max(uptimeMillis, mNow);
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            if (mTask == task) {
+                mTask = null;
+            }
+        }
+
+        void advanceBy(long millis) {
+            long target = mNow + millis;
+            while (mTask != null && mTaskTime <= target) {
+                Runnable task = mTask;
+                mNow = mTaskTime;
+                mTask = null;
+                task.run();
+            }
+            mNow = target;
+        }
+    }
+}
@@ -0,0 +1,613 @@
+package com.tzy.toast;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ToastScheduler在虚拟时钟上的测试，不需要设备或模拟器。
+ */
+public class ToastSchedulerTest {
+    private static final int PID = 1;
+    private static final String CONTEXT = "MainActivity";
+
+    private FakeTimeline mTimeline;
+    private ToastScheduler mScheduler;
+    private List<String> mEvents;
+
+    @Before
+    public void setUp() {
+        mTimeline = new FakeTimeline();
+        mScheduler = new ToastScheduler(mTimeline, mTimeline);
+        mEvents = new ArrayList<>();
+    }
+
+    @Test
+    public void showsToastsInFifoOrder() {
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("a"), ToastScheduler.LENGTH_SHORT);
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("b"), ToastScheduler.LENGTH_LONG);
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("c"), ToastScheduler.LENGTH_SHORT);
+        assertEquals("[show a]", mEvents.toString());
+
+        mTimeline.advanceBy(ToastScheduler.SHORT_DELAY);
+        assertEquals("[show a, hide a, show b]", mEvents.toString());
+
+        mTimeline.advanceBy(ToastScheduler.LONG_DELAY);
+        mTimeline.advanceBy(ToastScheduler.SHORT_DELAY);
+        assertEquals("[show a, hide a, show b, hide b, show c, hide c]", mEvents.toString());
+        assertEquals(0, mScheduler.size());
+        assertEquals(0, mTimeline.pendingTasks());
+    }
+
+    @Test
+    public void reenqueueUpdatesInPlace() {
+        Shower a = new Shower("a");
+        Shower b = new Shower("b");
+        mScheduler.enqueueToast(PID, CONTEXT, a, ToastScheduler.LENGTH_SHORT);
+        mScheduler.enqueueToast(PID, CONTEXT, b, ToastScheduler.LENGTH_SHORT);
+        mScheduler.enqueueToast(PID, CONTEXT, b, ToastScheduler.LENGTH_LONG);
+        assertEquals(2, mScheduler.size());
+
+        mTimeline.advanceBy(ToastScheduler.SHORT_DELAY);
+        mTimeline.advanceBy(ToastScheduler.SHORT_DELAY);
+        // b被更新成了LENGTH_LONG，所以还在显示
+        assertEquals(1, mScheduler.size());
+        mTimeline.advanceBy(ToastScheduler.LONG_DELAY - ToastScheduler.SHORT_DELAY);
+        assertEquals(0, mScheduler.size());
+    }
+
+    @Test
+    public void cancelShowingToastShowsNext() {
+        Shower a = new Shower("a");
+        mScheduler.enqueueToast(PID, CONTEXT, a, ToastScheduler.LENGTH_SHORT);
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("b"), ToastScheduler.LENGTH_SHORT);
+
+        assertTrue(mScheduler.cancelToast(CONTEXT, a));
+        assertFalse(mScheduler.cancelToast(CONTEXT, a));
+        assertEquals("[show a, hide a, show b]", mEvents.toString());
+    }
+
+    @Test
+    public void limitsToastsPerContext() {
+        for (int i = 0; i < ToastScheduler.MAX_PACKAGE_NOTIFICATIONS; i++) {
+            assertTrue(mScheduler.enqueueToast(PID, CONTEXT, new Shower("t" + i), ToastScheduler.LENGTH_SHORT));
+        }
+        assertFalse(mScheduler.enqueueToast(PID, CONTEXT, new Shower("x"), ToastScheduler.LENGTH_SHORT));
+        assertTrue(mScheduler.enqueueToast(PID, "SecondActivity", new Shower("y"), ToastScheduler.LENGTH_SHORT));
+    }
+
+    @Test
+    public void coalescesPendingToastInPlace() {
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("a"), ToastScheduler.LENGTH_SHORT);
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("b1"), ToastScheduler.LENGTH_SHORT, "b");
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("c"), ToastScheduler.LENGTH_SHORT);
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("b2"), ToastScheduler.LENGTH_SHORT, "b");
+        assertEquals(3, mScheduler.size());
+
+        mTimeline.runAll();
+        assertEquals("[show a, hide b1, hide a, show b2, hide b2, show c, hide c]", mEvents.toString());
+    }
+
+    @Test
+    public void coalescingShowingToastRestartsTimer() {
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("a1"), ToastScheduler.LENGTH_SHORT, "a");
+        mTimeline.advanceBy(ToastScheduler.SHORT_DELAY - 1);
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("a2"), ToastScheduler.LENGTH_SHORT, "a");
+        assertEquals("[show a1, hide a1, show a2]", mEvents.toString());
+
+        mTimeline.advanceBy(ToastScheduler.SHORT_DELAY - 1);
+        assertEquals(1, mScheduler.size());
+        mTimeline.advanceBy(1);
+        assertEquals(0, mScheduler.size());
+        // 不同context里相同的key不会合并
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("x"), ToastScheduler.LENGTH_SHORT, "a");
+        mScheduler.enqueueToast(PID, "SecondActivity", new Shower("y"), ToastScheduler.LENGTH_SHORT, "a");
+        assertEquals(2, mScheduler.size());
+    }
+
+    @Test
+    public void reportsMetrics() {
+        ToastMetricsRecorder recorder = new ToastMetricsRecorder();
+        mScheduler.setMetrics(recorder);
+        Shower cancelled = new Shower("c");
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("a"), ToastScheduler.LENGTH_SHORT);
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("b"), ToastScheduler.LENGTH_LONG);
+        mScheduler.enqueueToast(PID, CONTEXT, cancelled, ToastScheduler.LENGTH_SHORT);
+        mScheduler.cancelToast(CONTEXT, cancelled);
+        mTimeline.runAll();
+
+        assertEquals(3, recorder.getEnqueuedCount());
+        assertEquals(2, recorder.getShownCount());
+        assertEquals(1, recorder.getDroppedCount(ToastMetrics.DROP_CANCELLED));
+        assertEquals(3, recorder.getMaxQueueDepth());
+        assertEquals(0, recorder.getQueueDepth());
+        // b在a显示完之后才显示
+        assertEquals(ToastScheduler.SHORT_DELAY, recorder.getWaitMillis().getMaxValue(), ToastScheduler.SHORT_DELAY * 0.04);
+        assertEquals(ToastScheduler.LONG_DELAY, recorder.getVisibleMillis().getMaxValue(), ToastScheduler.LONG_DELAY * 0.04);
+    }
+
+    @Test
+    public void showsHigherPriorityFirst() {
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("a"), options(ToastScheduler.PRIORITY_NORMAL));
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("b"), options(ToastScheduler.PRIORITY_LOW));
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("c"), options(ToastScheduler.PRIORITY_HIGH));
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("d"), options(ToastScheduler.PRIORITY_NORMAL));
+        // 没打开抢占，正在显示的a不受影响
+        assertEquals("[show a]", mEvents.toString());
+
+        mTimeline.runAll();
+        assertEquals("[show a, hide a, show c, hide c, show d, hide d, show b, hide b]", mEvents.toString());
+    }
+
+    @Test
+    public void dropsExpiredToastsWithoutShowing() {
+        ToastMetricsRecorder recorder = new ToastMetricsRecorder();
+        mScheduler.setMetrics(recorder);
+        ToastScheduler.Options stale = options(ToastScheduler.PRIORITY_NORMAL);
+        stale.maxAgeMillis = ToastScheduler.SHORT_DELAY / 2;
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("a"), options(ToastScheduler.PRIORITY_NORMAL));
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("b"), stale);
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("c"), options(ToastScheduler.PRIORITY_NORMAL));
+
+        // b在排队时就到期了，不等a隐藏就被丢弃
+        mTimeline.advanceBy(ToastScheduler.SHORT_DELAY / 2);
+        assertEquals("[show a, hide b]", mEvents.toString());
+        mTimeline.advanceBy(ToastScheduler.SHORT_DELAY / 2);
+        assertEquals("[show a, hide b, hide a, show c]", mEvents.toString());
+        assertEquals(1, recorder.getDroppedCount(ToastMetrics.DROP_EXPIRED));
+        assertEquals(1, mScheduler.size());
+    }
+
+    @Test
+    public void evictsOldestWhenFull() {
+        mScheduler.setCapacity(2, ToastScheduler.EVICT_DROP_OLDEST);
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("a"), options(ToastScheduler.PRIORITY_NORMAL));
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("b"), options(ToastScheduler.PRIORITY_HIGH));
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("c"), options(ToastScheduler.PRIORITY_LOW));
+        // 正在显示的a不占容量
+        assertEquals(ToastScheduler.RESULT_ENQUEUED,
+                mScheduler.enqueueToast(PID, CONTEXT, new Shower("d"), options(ToastScheduler.PRIORITY_LOW)));
+        assertEquals("[show a, hide b]", mEvents.toString());
+
+        mTimeline.runAll();
+        assertEquals("[show a, hide b, hide a, show c, hide c, show d, hide d]", mEvents.toString());
+    }
+
+    @Test
+    public void evictsLowestPriorityWhenFull() {
+        mScheduler.setCapacity(2, ToastScheduler.EVICT_DROP_LOWEST_PRIORITY);
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("a"), options(ToastScheduler.PRIORITY_NORMAL));
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("b"), options(ToastScheduler.PRIORITY_NORMAL));
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("c"), options(ToastScheduler.PRIORITY_HIGH));
+        assertEquals(ToastScheduler.RESULT_REJECTED_CAPACITY,
+                mScheduler.enqueueToast(PID, CONTEXT, new Shower("d"), options(ToastScheduler.PRIORITY_LOW)));
+        assertEquals(ToastScheduler.RESULT_ENQUEUED,
+                mScheduler.enqueueToast(PID, CONTEXT, new Shower("e"), options(ToastScheduler.PRIORITY_URGENT)));
+        assertEquals(3, mScheduler.size());
+
+        mTimeline.runAll();
+        assertEquals("[show a, hide b, hide a, show e, hide e, show c, hide c]", mEvents.toString());
+    }
+
+    @Test
+    public void preemptsLowerPriorityToast() {
+        ToastMetricsRecorder recorder = new ToastMetricsRecorder();
+        mScheduler.setMetrics(recorder);
+        mScheduler.setPreemptEnabled(true);
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("a"), options(ToastScheduler.PRIORITY_NORMAL));
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("b"), options(ToastScheduler.PRIORITY_NORMAL));
+        assertEquals("[show a]", mEvents.toString());
+
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("c"), options(ToastScheduler.PRIORITY_URGENT));
+        assertEquals("[show a, hide a, show c]", mEvents.toString());
+
+        mTimeline.runAll();
+        assertEquals("[show a, hide a, show c, hide c, show b, hide b]", mEvents.toString());
+        assertEquals(3, recorder.getShownCount());
+        assertEquals(1, recorder.getDroppedCount(ToastMetrics.DROP_PREEMPTED));
+    }
+
+    @Test
+    public void purgesDestroyedContextInOneCall() {
+        ToastMetricsRecorder recorder = new ToastMetricsRecorder();
+        mScheduler.setMetrics(recorder);
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("a"), ToastScheduler.LENGTH_SHORT);
+        mScheduler.enqueueToast(PID, "SecondActivity", new Shower("b"), ToastScheduler.LENGTH_SHORT);
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("c"), ToastScheduler.LENGTH_SHORT);
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("d"), ToastScheduler.LENGTH_SHORT);
+
+        assertEquals(3, mScheduler.purgeContext(CONTEXT));
+        // 等待中的先移除，正在显示的最后移除，之后直接轮到另一个context
+        assertEquals("[show a, hide d, hide c, hide a, show b]", mEvents.toString());
+        assertEquals(1, mScheduler.size());
+        assertEquals(2, recorder.getDroppedCount(ToastMetrics.DROP_ACTIVITY_FINISHING));
+        assertEquals(0, mScheduler.purgeContext(CONTEXT));
+
+        // 分组清空后数量限制也重新计算
+        for (int i = 0; i < ToastScheduler.MAX_PACKAGE_NOTIFICATIONS; i++) {
+            assertTrue(mScheduler.enqueueToast(PID, CONTEXT, new Shower(null), ToastScheduler.LENGTH_SHORT));
+        }
+    }
+
+    @Test
+    public void cancelsByTagAcrossContexts() {
+        ToastScheduler.Options tagged = new ToastScheduler.Options();
+        tagged.tag = "network";
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("a"), tagged);
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("b"), new ToastScheduler.Options());
+        mScheduler.enqueueToast(PID, "SecondActivity", new Shower("c"), tagged);
+
+        assertEquals(2, mScheduler.cancelTaggedToasts("network"));
+        assertEquals("[show a, hide c, hide a, show b]", mEvents.toString());
+        assertEquals(0, mScheduler.cancelTaggedToasts("network"));
+        assertEquals(1, mScheduler.size());
+    }
+
+    @Test
+    public void purgesRecordsWhoseOwnerWasCollected() {
+        ToastMetricsRecorder recorder = new ToastMetricsRecorder();
+        mScheduler.setMetrics(recorder);
+        ToastScheduler.Options options = new ToastScheduler.Options();
+        Object liveOwner = new Object();
+        options.owner = liveOwner;
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("a"), options);
+        options.owner = new Object();
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("b"), options);
+        options.owner = null;
+        assertEquals(2, mScheduler.size());
+
+        // b的owner已经没有强引用了，GC之后下一次队列操作就会移除b
+        Shower probe = new Shower(null);
+        for (int i = 0; i < 50 && recorder.getDroppedCount(ToastMetrics.DROP_OWNER_COLLECTED) == 0; i++) {
+            System.gc();
+            mScheduler.cancelToast(CONTEXT, probe);
+        }
+        assertEquals(1, recorder.getDroppedCount(ToastMetrics.DROP_OWNER_COLLECTED));
+        assertEquals("[show a, hide b]", mEvents.toString());
+        assertEquals(1, mScheduler.size());
+
+        mTimeline.runAll();
+        assertEquals(0, mScheduler.size());
+        assertTrue(liveOwner != null);
+    }
+
+    @Test
+    public void stackedModeShowsSeveralToastsWithIndependentTimeouts() {
+        mScheduler.setMaxVisible(3);
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("a"), ToastScheduler.LENGTH_LONG);
+        mTimeline.advanceBy(1000);
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("b"), ToastScheduler.LENGTH_SHORT);
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("c"), ToastScheduler.LENGTH_SHORT);
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("d"), ToastScheduler.LENGTH_SHORT);
+        assertEquals("[show a, show b@1, show c@2]", mEvents.toString());
+
+        // b和c同时到期，d补进空出来的第一个槽位
+        mTimeline.advanceBy(ToastScheduler.SHORT_DELAY);
+        assertEquals("[show a, show b@1, show c@2, hide b, show d@1, hide c]", mEvents.toString());
+
+        // a比b、c早显示，但时长更长，各自计时
+        mTimeline.advanceTo(ToastScheduler.LONG_DELAY);
+        assertEquals("[show a, show b@1, show c@2, hide b, show d@1, hide c, hide a]", mEvents.toString());
+        mTimeline.runAll();
+        assertEquals(0, mScheduler.size());
+    }
+
+    @Test
+    public void stackedModeDrainsBurstFaster() {
+        mScheduler.setMaxVisible(4);
+        for (int i = 0; i < 20; i++) {
+            mScheduler.enqueueToast(PID, CONTEXT, new Shower(null), ToastScheduler.LENGTH_SHORT);
+        }
+        mTimeline.runAll();
+        assertEquals(20 / 4 * ToastScheduler.SHORT_DELAY, mTimeline.uptimeMillis());
+    }
+
+    @Test
+    public void holdsBackRecordsUntilReady() {
+        ToastScheduler.Options notReady = new ToastScheduler.Options();
+        notReady.ready = false;
+        Shower a = new Shower("a");
+        mScheduler.enqueueToast(PID, CONTEXT, a, notReady);
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("b"), ToastScheduler.LENGTH_SHORT);
+        // a的视图还没好，后面的b先显示
+        assertEquals("[show b]", mEvents.toString());
+
+        assertTrue(mScheduler.markReady(CONTEXT, a));
+        assertEquals("[show b]", mEvents.toString());
+        mTimeline.advanceBy(ToastScheduler.SHORT_DELAY);
+        assertEquals("[show b, hide b, show a]", mEvents.toString());
+
+        assertFalse(mScheduler.markReady(CONTEXT, new Shower("x")));
+    }
+
+    @Test
+    public void coalescingReadyToastIntoPendingOneShowsIt() {
+        ToastScheduler.Options notReady = new ToastScheduler.Options();
+        notReady.ready = false;
+        notReady.coalesceKey = "k";
+        ToastScheduler.Options ready = new ToastScheduler.Options();
+        ready.coalesceKey = "k";
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("a"), notReady);
+        assertEquals(ToastScheduler.RESULT_COALESCED,
+                mScheduler.enqueueToast(PID, CONTEXT, new Shower("b"), ready));
+
+        assertEquals("[hide a, show b]", mEvents.toString());
+        mTimeline.runAll();
+        assertEquals(0, mScheduler.size());
+    }
+
+    @Test
+    public void coalescingUnreadyToastIntoShowingOneWaitsForMarkReady() {
+        ToastScheduler.Options ready = new ToastScheduler.Options();
+        ready.coalesceKey = "k";
+        ToastScheduler.Options notReady = new ToastScheduler.Options();
+        notReady.ready = false;
+        notReady.coalesceKey = "k";
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("c"), ready);
+        Shower d = new Shower("d");
+        mScheduler.enqueueToast(PID, CONTEXT, d, notReady);
+        // d的视图还没好，c继续显示
+        assertEquals("[show c]", mEvents.toString());
+
+        mTimeline.advanceBy(ToastScheduler.SHORT_DELAY / 2);
+        assertTrue(mScheduler.markReady(CONTEXT, d));
+        assertEquals("[show c, hide c, show d]", mEvents.toString());
+        // 从markReady开始重新计时
+        mTimeline.advanceBy(ToastScheduler.SHORT_DELAY - 1);
+        assertEquals(1, mScheduler.size());
+        mTimeline.advanceBy(1);
+        assertEquals("[show c, hide c, show d, hide d]", mEvents.toString());
+        assertEquals(0, mScheduler.size());
+    }
+
+    @Test
+    public void coalescedToastOutlivingHeldContentReleasesSlot() {
+        ToastScheduler.Options ready = new ToastScheduler.Options();
+        ready.coalesceKey = "k";
+        ToastScheduler.Options notReady = new ToastScheduler.Options();
+        notReady.ready = false;
+        notReady.coalesceKey = "k";
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("c"), ready);
+        Shower d = new Shower("d");
+        mScheduler.enqueueToast(PID, CONTEXT, d, notReady);
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("e"), ToastScheduler.LENGTH_SHORT);
+
+        // c的时间到了d还没准备好，d让出槽位，后面的e先显示
+        mTimeline.advanceBy(ToastScheduler.SHORT_DELAY);
+        assertEquals("[show c, hide c, show e]", mEvents.toString());
+        assertEquals(2, mScheduler.size());
+
+        assertTrue(mScheduler.markReady(CONTEXT, d));
+        assertEquals("[show c, hide c, show e]", mEvents.toString());
+        mTimeline.runAll();
+        assertEquals("[show c, hide c, show e, hide e, show d, hide d]", mEvents.toString());
+        assertEquals(0, mScheduler.size());
+    }
+
+    @Test
+    public void adaptiveTimingKeepsIsolatedToastDuration() {
+        mScheduler.setTimingPolicy(new AdaptiveTimingPolicy());
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("a"), ToastScheduler.LENGTH_SHORT);
+        mTimeline.advanceBy(ToastScheduler.SHORT_DELAY - 1);
+        assertEquals("[show a]", mEvents.toString());
+        mTimeline.advanceBy(1);
+        assertEquals("[show a, hide a]", mEvents.toString());
+    }
+
+    @Test
+    public void adaptiveTimingBoundsBurstDrainTime() {
+        mScheduler.setTimingPolicy(new AdaptiveTimingPolicy(500, 5000));
+        int burst = 20;
+        for (int i = 0; i < burst; i++) {
+            mScheduler.enqueueToast(PID, CONTEXT, new Shower(null), ToastScheduler.LENGTH_SHORT);
+        }
+        long start = mTimeline.uptimeMillis();
+        mTimeline.runAll();
+        long drain = mTimeline.uptimeMillis() - start;
+        assertEquals(0, mScheduler.size());
+        // 固定时长要40秒，这里只需要一小部分
+        assertTrue("drain=" + drain, drain < burst * ToastScheduler.SHORT_DELAY / 2);
+        assertTrue("drain=" + drain, drain >= burst * 500);
+    }
+
+    @Test
+    public void adaptiveTimingScalesWithTextLength() {
+        AdaptiveTimingPolicy policy = new AdaptiveTimingPolicy(1000, 5000).setMillisPerChar(100);
+        assertEquals(ToastScheduler.SHORT_DELAY, policy.getDisplayMillis(ToastScheduler.LENGTH_SHORT, 5, 0));
+        assertEquals(3000, policy.getDisplayMillis(ToastScheduler.LENGTH_SHORT, 30, 0));
+        assertEquals(5000, policy.getDisplayMillis(ToastScheduler.LENGTH_SHORT, 500, 0));
+        assertEquals(1000, policy.getDisplayMillis(ToastScheduler.LENGTH_SHORT, 500, 1000));
+    }
+
+    @Test
+    public void drainsManySimulatedCycles() {
+        Shower[] showers = new Shower[16];
+        for (int i = 0; i < showers.length; i++) {
+            showers[i] = new Shower(null);
+        }
+        for (int round = 0; round < 20000; round++) {
+            for (Shower shower : showers) {
+                mScheduler.enqueueToast(PID, CONTEXT, shower, round & 1);
+            }
+            mScheduler.cancelToast(CONTEXT, showers[round % showers.length]);
+            mTimeline.runAll();
+            assertEquals(0, mScheduler.size());
+        }
+    }
+
+    @Test
+    public void rateLimitRefillsOverTime() {
+        ToastMetricsRecorder recorder = new ToastMetricsRecorder();
+        mScheduler.setMetrics(recorder);
+        mScheduler.setRateLimit(3, 2);
+        Shower[] showers = new Shower[4];
+        for (int i = 0; i < showers.length; i++) {
+            showers[i] = new Shower(null);
+        }
+        for (int i = 0; i < 3; i++) {
+            assertTrue(mScheduler.enqueueToast(PID, CONTEXT, showers[i], ToastScheduler.LENGTH_SHORT));
+        }
+        assertEquals(ToastScheduler.RESULT_REJECTED_QUOTA,
+                mScheduler.enqueueToast(PID, CONTEXT, showers[3], new ToastScheduler.Options()));
+        // 原地更新不用令牌
+        assertTrue(mScheduler.enqueueToast(PID, CONTEXT, showers[0], ToastScheduler.LENGTH_LONG));
+
+        // 取消掉再入队也不行，令牌要按时间恢复
+        mScheduler.cancelAllToasts();
+        assertFalse(mScheduler.enqueueToast(PID, CONTEXT, showers[3], ToastScheduler.LENGTH_SHORT));
+        mTimeline.advanceBy(499);
+        assertFalse(mScheduler.enqueueToast(PID, CONTEXT, showers[3], ToastScheduler.LENGTH_SHORT));
+        mTimeline.advanceBy(1);
+        assertTrue(mScheduler.enqueueToast(PID, CONTEXT, showers[3], ToastScheduler.LENGTH_SHORT));
+        assertEquals(3, recorder.getDroppedCount(ToastMetrics.DROP_QUOTA));
+    }
+
+    @Test
+    public void globalRateLimitCapsAllContexts() {
+        mScheduler.setGlobalRateLimit(4, 10);
+        mScheduler.setRateLimit(1, 1);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(mScheduler.enqueueToast(PID, "Activity" + i, new Shower(null), ToastScheduler.LENGTH_SHORT));
+        }
+        assertEquals(ToastScheduler.RESULT_REJECTED_GLOBAL_QUOTA,
+                mScheduler.enqueueToast(PID, "Activity4", new Shower(null), new ToastScheduler.Options()));
+
+        // 全局的令牌100ms后就恢复了；被全局限速拒绝时没有扣Activity4的令牌，否则要等1秒
+        mTimeline.advanceBy(100);
+        assertTrue(mScheduler.enqueueToast(PID, "Activity4", new Shower(null), ToastScheduler.LENGTH_SHORT));
+    }
+
+    @Test
+    public void enqueueAllShowsOnlyWhatFitsAndReportsEachResult() {
+        for (int i = 0; i < ToastScheduler.MAX_PACKAGE_NOTIFICATIONS - 2; i++) {
+            mScheduler.enqueueToast(PID, "Other", new Shower(null), ToastScheduler.LENGTH_SHORT);
+        }
+        mEvents.clear();
+        Shower a = new Shower("a");
+        String[] contexts = {CONTEXT, CONTEXT, null, "Other", "Other", "Other"};
+        IToastShower[] callbacks = {a, new Shower("b"), new Shower("x"), new Shower("c"), new Shower("d"),
+                new Shower("e")};
+        ToastScheduler.Options[] options = new ToastScheduler.Options[callbacks.length];
+        for (int i = 0; i < options.length; i++) {
+            options[i] = options(ToastScheduler.PRIORITY_NORMAL);
+        }
+        options[1].priority = ToastScheduler.PRIORITY_URGENT;
+
+        int[] results = mScheduler.enqueueAll(PID, contexts, callbacks, options);
+        assertEquals(ToastScheduler.RESULT_ENQUEUED, results[0]);
+        assertEquals(ToastScheduler.RESULT_ENQUEUED, results[1]);
+        assertEquals(ToastScheduler.RESULT_REJECTED_INVALID, results[2]);
+        assertEquals(ToastScheduler.RESULT_ENQUEUED, results[3]);
+        assertEquals(ToastScheduler.RESULT_ENQUEUED, results[4]);
+        assertEquals(ToastScheduler.RESULT_REJECTED_QUOTA, results[5]);
+        // "Other"的第一个还在显示，整批插完才补槽位，所以一个都没有显示
+        assertEquals("[]", mEvents.toString());
+
+        // 同一批里再次出现的是原地更新
+        results = mScheduler.enqueueAll(PID, new String[]{CONTEXT}, new IToastShower[]{a},
+                new ToastScheduler.Options[]{options(ToastScheduler.PRIORITY_NORMAL)});
+        assertEquals(ToastScheduler.RESULT_UPDATED, results[0]);
+    }
+
+    @Test
+    public void enqueueAllIntoIdleQueueShowsHighestPriorityOnce() {
+        String[] contexts = {CONTEXT, CONTEXT, CONTEXT};
+        IToastShower[] callbacks = {new Shower("a"), new Shower("b"), new Shower("c")};
+        ToastScheduler.Options[] options = {options(ToastScheduler.PRIORITY_LOW),
+                options(ToastScheduler.PRIORITY_HIGH), options(ToastScheduler.PRIORITY_NORMAL)};
+
+        mScheduler.enqueueAll(PID, contexts, callbacks, options);
+        // 逐个入队时会先显示a，这里插完才挑最高优先级的
+        assertEquals("[show b]", mEvents.toString());
+        mTimeline.runAll();
+        assertEquals("[show b, hide b, show c, hide c, show a, hide a]", mEvents.toString());
+    }
+
+    @Test
+    public void enqueueAllReshowsEachUpdatedShowingRecordOnce() {
+        Shower a = new Shower("a");
+        mScheduler.enqueueToast(PID, CONTEXT, a, ToastScheduler.LENGTH_SHORT);
+        mScheduler.enqueueAll(PID, new String[]{CONTEXT, CONTEXT, CONTEXT}, new IToastShower[]{a, a, a},
+                new ToastScheduler.Options[]{options(ToastScheduler.PRIORITY_NORMAL),
+                        options(ToastScheduler.PRIORITY_NORMAL), options(ToastScheduler.PRIORITY_NORMAL)});
+        assertEquals("[show a, show a]", mEvents.toString());
+        mTimeline.runAll();
+        mEvents.clear();
+
+        ToastScheduler.Options keyed = new ToastScheduler.Options();
+        keyed.coalesceKey = "k";
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("k1"), keyed);
+        mScheduler.enqueueAll(PID, new String[]{CONTEXT, CONTEXT}, new IToastShower[]{new Shower("k2"),
+                new Shower("k3")}, new ToastScheduler.Options[]{keyed, keyed});
+        // 中间的k2从来没有显示过
+        assertEquals("[show k1, hide k1, hide k2, show k3]", mEvents.toString());
+    }
+
+    @Test
+    public void dropsToastsOfFinishingActivity() {
+        ToastMetricsRecorder recorder = new ToastMetricsRecorder();
+        mScheduler.setMetrics(recorder);
+        FinishingShower a = new FinishingShower("a");
+        FinishingShower b = new FinishingShower("b");
+        mScheduler.enqueueToast(PID, CONTEXT, a, ToastScheduler.LENGTH_SHORT);
+        mScheduler.enqueueToast(PID, CONTEXT, b, ToastScheduler.LENGTH_SHORT);
+        mScheduler.enqueueToast(PID, CONTEXT, new Shower("c"), ToastScheduler.LENGTH_SHORT);
+
+        // 轮到b之前就已经在finish，不回调show
+        b.mFinishing = true;
+        // a回调show之后才开始finish，显示方把它交回队列，槽位马上空出来
+        assertTrue(mScheduler.dropToast(CONTEXT, a, ToastMetrics.DROP_ACTIVITY_FINISHING));
+        assertEquals("[show a, hide a, hide b, show c]", mEvents.toString());
+        assertEquals(2, recorder.getDroppedCount(ToastMetrics.DROP_ACTIVITY_FINISHING));
+        assertEquals(1, mScheduler.size());
+        assertFalse(mScheduler.dropToast(CONTEXT, a, ToastMetrics.DROP_ACTIVITY_FINISHING));
+    }
+
+    private static ToastScheduler.Options options(int priority) {
+        ToastScheduler.Options options = new ToastScheduler.Options(ToastScheduler.LENGTH_SHORT);
+        options.priority = priority;
+        return options;
+    }
+
+    private class Shower implements IToastShower {
+        private final String mName;
+
+        Shower(String name) {
+            mName = name;
+        }
+
+        @Override
+        public void show(int slot) {
+            if (mName != null) {
+                // 堆叠模式下标出槽位
+                mEvents.add(slot == 0 ? "show " + mName : "show " + mName + "@" + slot);
+            }
+        }
+
+        @Override
+        public void hide() {
+            if (mName != null) {
+                mEvents.add("hide " + mName);
+            }
+        }
+    }
+
+    private final class FinishingShower extends Shower implements ToastScheduler.FinishingAware {
+        boolean mFinishing;
+
+        FinishingShower(String name) {
+            super(name);
+        }
+
+        @Override
+        public boolean isFinishing() {
+            return mFinishing;
+        }
+    }
+}
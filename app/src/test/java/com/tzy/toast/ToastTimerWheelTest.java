@@ -0,0 +1,136 @@
+package com.tzy.toast;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ToastTimerWheelTest {
+    private FakeTimeline mTimeline;
+    private ToastTimerWheel mWheel;
+    private List<String> mFired;
+
+    @Before
+    public void setUp() {
+        mTimeline = new FakeTimeline();
+        mFired = new ArrayList<>();
+        // 一圈只有16 * 10ms，方便测试跨圈的定时
+        mWheel = new ToastTimerWheel(mTimeline, new Runnable() {
+            @Override
+            public void run() {
+                mWheel.expire(mTimeline.uptimeMillis());
+            }
+        }, 10, 16);
+    }
+
+    @Test
+    public void armsOneTaskForManyTimers() {
+        for (int i = 0; i < 20; i++) {
+            mWheel.schedule(new NamedTimer("t" + i), 100 + i * 7);
+        }
+        assertEquals(1, mTimeline.pendingTasks());
+
+        mTimeline.advanceTo(99);
+        assertTrue(mFired.isEmpty());
+        mTimeline.advanceTo(100);
+        assertEquals("[t0]", mFired.toString());
+        assertEquals(1, mTimeline.pendingTasks());
+
+        mTimeline.runAll();
+        assertEquals(20, mFired.size());
+        assertEquals(0, mWheel.size());
+        assertEquals(0, mTimeline.pendingTasks());
+    }
+
+    @Test
+    public void firesTimersDueTogetherInOneTaskInDeadlineOrder() {
+        mWheel.schedule(new NamedTimer("late"), 205);
+        mWheel.schedule(new NamedTimer("a"), 200);
+        mWheel.schedule(new NamedTimer("b"), 200);
+        mWheel.schedule(new NamedTimer("later"), 300);
+
+        // 主线程卡住，任务晚执行了，到期的几个在同一次任务里按时间先后回调
+        mTimeline.advanceTo(50);
+        mWheel.expire(250);
+        assertEquals("[a, b, late]", mFired.toString());
+        assertEquals(1, mWheel.size());
+    }
+
+    @Test
+    public void cancelledTimersNeverFire() {
+        NamedTimer first = new NamedTimer("first");
+        NamedTimer second = new NamedTimer("second");
+        mWheel.schedule(first, 100);
+        mWheel.schedule(second, 200);
+        mWheel.cancel(first);
+        assertFalse(first.isScheduled());
+
+        mTimeline.runAll();
+        assertEquals("[second]", mFired.toString());
+
+        mWheel.schedule(first, 300);
+        mWheel.cancel(first);
+        // 没有定时时不留任务
+        assertEquals(0, mTimeline.pendingTasks());
+    }
+
+    @Test
+    public void rescheduleMovesTimer() {
+        NamedTimer timer = new NamedTimer("t");
+        mWheel.schedule(timer, 500);
+        mWheel.schedule(timer, 120);
+        assertEquals(1, mWheel.size());
+
+        mTimeline.advanceTo(120);
+        assertEquals("[t]", mFired.toString());
+        mTimeline.runAll();
+        assertEquals(1, mFired.size());
+    }
+
+    @Test
+    public void handlesTimersBeyondOneRevolution() {
+        mWheel.schedule(new NamedTimer("far"), 1000);
+        mWheel.schedule(new NamedTimer("near"), 30);
+
+        mTimeline.advanceTo(999);
+        assertEquals("[near]", mFired.toString());
+        mTimeline.advanceTo(1000);
+        assertEquals("[near, far]", mFired.toString());
+    }
+
+    @Test
+    public void callbackCanCancelTimerDueInSameBatch() {
+        final NamedTimer victim = new NamedTimer("victim");
+        mWheel.schedule(new NamedTimer("killer") {
+            @Override
+            void onExpired() {
+                super.onExpired();
+                mWheel.cancel(victim);
+                mWheel.schedule(new NamedTimer("next"), 400);
+            }
+        }, 100);
+        mWheel.schedule(victim, 100);
+
+        mTimeline.runAll();
+        assertEquals("[killer, next]", mFired.toString());
+        assertEquals(0, mTimeline.pendingTasks());
+    }
+
+    private class NamedTimer extends ToastTimerWheel.Timer {
+        private final String mName;
+
+        NamedTimer(String name) {
+            mName = name;
+        }
+
+        @Override
+        void onExpired() {
+            mFired.add(mName);
+        }
+    }
+}
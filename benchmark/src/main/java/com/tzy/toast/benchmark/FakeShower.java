@@ -0,0 +1,29 @@
+package com.tzy.toast.benchmark;
+
+import com.tzy.toast.IToastShower;
+
+/**
+ * 类描述：什么也不显示的IToastShower，只计数，防止调用被JIT优化掉。
+ */
+public class FakeShower implements IToastShower {
+    public int shown;
+    public int hidden;
+
+    @Override
+    public void show(int slot) {
+        shown++;
+    }
+
+    @Override
+    public void hide() {
+        hidden++;
+    }
+
+    public static FakeShower[] create(int count) {
+        FakeShower[] showers = new FakeShower[count];
+        for (int i = 0; i < count; i++) {
+            showers[i] = new FakeShower();
+        }
+        return showers;
+    }
+}
@@ -0,0 +1,52 @@
+package com.tzy.toast.benchmark;
+
+import com.tzy.toast.ToastScheduler;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 类描述：代替主线程Handler的桩实现，同时也是时钟。
+ * 只记住最近一次安排的定时任务，由benchmark自己决定什么时候触发，
+ * 不分配任何对象，所以测出来的分配率都来自ToastScheduler本身。
+ */
+public class StubExecutor implements ToastScheduler.Clock, ToastScheduler.Executor {
+    private final AtomicLong mNow = new AtomicLong();
+    private volatile Runnable mPending;
+    private volatile long mPendingAt;
+
+    @Override
+    public long uptimeMillis() {
+        return mNow.get();
+    }
+
+    @Override
+    public void schedule(Runnable task, long uptimeMillis) {
+        mPendingAt = uptimeMillis;
+        mPending = task;
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        if (mPending == task) {
+            mPending = null;
+        }
+    }
+
+    /**
+     * 模拟Handler触发当前显示的Toast的超时。
+     *
+     * @return 是否有任务被执行
+     */
+    public boolean fireTimeout() {
+        Runnable task = mPending;
+        if (task == null) {
+            return false;
+        }
+        mPending = null;
+        // 直接跳到任务安排的时间，时间轮只处理已经到期的定时
+        long now = mNow.get();
+        mNow.set(Math.max(now + 1, mPendingAt));
+        task.run();
+        return true;
+    }
+}
@@ -0,0 +1,205 @@
+package com.tzy.toast.benchmark;
+
+import com.tzy.toast.ToastScheduler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 类描述：ToastScheduler（也就是ToastManager背后的队列）的性能测试。
+ * <p/>
+ * 同时以Throughput和SampleTime两种模式运行，前者给出ops/s，后者给出p99等延迟分位数；
+ * build.gradle里默认打开了gc profiler，报告每次操作的分配字节数。
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ToastSchedulerBenchmark {
+    private static final int PID = 1;
+
+    /**
+     * 桩时钟只在触发超时时才走，除了专门测限速的以外都放开限速，否则测到的只是被拒绝的路径。
+     */
+    static ToastScheduler newUnlimitedScheduler(StubExecutor executor) {
+        ToastScheduler scheduler = new ToastScheduler(executor, executor);
+        scheduler.setRateLimit(Integer.MAX_VALUE, 1e9);
+        scheduler.setGlobalRateLimit(Integer.MAX_VALUE, 1e9);
+        return scheduler;
+    }
+
+    /**
+     * 单个生产者一次性入队一批Toast，然后由桩Handler依次触发超时把队列排空。
+     */
+    @State(Scope.Thread)
+    public static class BurstState {
+        @Param({"8", "32"})
+        public int burst;
+
+        StubExecutor executor;
+        ToastScheduler scheduler;
+        FakeShower[] showers;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            executor = new StubExecutor();
+            scheduler = newUnlimitedScheduler(executor);
+            showers = FakeShower.create(burst);
+        }
+    }
+
+    @Benchmark
+    public int singleProducerBurst(BurstState s) {
+        for (FakeShower shower : s.showers) {
+            s.scheduler.enqueueToast(PID, "MainActivity", shower, ToastScheduler.LENGTH_SHORT);
+        }
+        int fired = 0;
+        while (s.executor.fireTimeout()) {
+            fired++;
+        }
+        return fired;
+    }
+
+    /**
+     * 和ToastManager.enqueueToast一样，在入队前先拼出日志字符串，用来衡量无条件打日志的开销。
+     */
+    @Benchmark
+    public int singleProducerBurstWithLogStrings(BurstState s) {
+        int length = 0;
+        for (FakeShower shower : s.showers) {
+            String log = "enqueueToast contextName=" + "MainActivity" + " callback=" + shower
+                    + " duration=" + ToastScheduler.LENGTH_SHORT;
+            length += log.length();
+            s.scheduler.enqueueToast(PID, "MainActivity", shower, ToastScheduler.LENGTH_SHORT);
+        }
+        while (s.executor.fireTimeout()) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * 多个线程共用一个scheduler，每个线程在自己的context里入队后立即取消，测锁竞争。
+     */
+    @State(Scope.Benchmark)
+    public static class SharedState {
+        final AtomicInteger threadIds = new AtomicInteger();
+        StubExecutor executor;
+        ToastScheduler scheduler;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            executor = new StubExecutor();
+            scheduler = newUnlimitedScheduler(executor);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ProducerState {
+        String contextName;
+        FakeShower[] showers;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp(SharedState shared) {
+            contextName = "Activity" + shared.threadIds.getAndIncrement();
+            showers = FakeShower.create(4);
+        }
+
+        FakeShower nextShower() {
+            FakeShower shower = showers[next];
+            next = (next + 1) % showers.length;
+            return shower;
+        }
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean multiProducer8(SharedState shared, ProducerState producer) {
+        return enqueueThenCancel(shared, producer);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean multiProducer16(SharedState shared, ProducerState producer) {
+        return enqueueThenCancel(shared, producer);
+    }
+
+    private static boolean enqueueThenCancel(SharedState shared, ProducerState producer) {
+        FakeShower shower = producer.nextShower();
+        shared.scheduler.enqueueToast(PID, producer.contextName, shower, ToastScheduler.LENGTH_SHORT);
+        return shared.scheduler.cancelToast(producer.contextName, shower);
+    }
+
+    /**
+     * 入队4个，取消其中3个（包括正在显示的那个），剩下的由超时清掉。
+     */
+    @State(Scope.Thread)
+    public static class CancelState {
+        StubExecutor executor;
+        ToastScheduler scheduler;
+        FakeShower[] showers;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            executor = new StubExecutor();
+            scheduler = newUnlimitedScheduler(executor);
+            showers = FakeShower.create(4);
+        }
+    }
+
+    @Benchmark
+    public boolean cancelHeavy(CancelState s) {
+        for (FakeShower shower : s.showers) {
+            s.scheduler.enqueueToast(PID, "MainActivity", shower, ToastScheduler.LENGTH_SHORT);
+        }
+        s.scheduler.cancelToast("MainActivity", s.showers[0]);
+        s.scheduler.cancelToast("MainActivity", s.showers[2]);
+        s.scheduler.cancelToast("MainActivity", s.showers[3]);
+        return s.executor.fireTimeout();
+    }
+
+    /**
+     * 同一context已经连续入队了MAX_PACKAGE_NOTIFICATIONS个Toast，令牌用完了，
+     * 每次入队都在令牌桶处被拒绝；另外原地更新一个已经在队列里的，不用令牌。
+     */
+    @State(Scope.Thread)
+    public static class NearCapState {
+        ToastScheduler scheduler;
+        FakeShower queued;
+        FakeShower rejected;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            StubExecutor executor = new StubExecutor();
+            scheduler = new ToastScheduler(executor, executor);
+            FakeShower[] backlog = FakeShower.create(ToastScheduler.MAX_PACKAGE_NOTIFICATIONS);
+            for (FakeShower shower : backlog) {
+                scheduler.enqueueToast(PID, "MainActivity", shower, ToastScheduler.LENGTH_SHORT);
+            }
+            queued = backlog[backlog.length - 1];
+            rejected = new FakeShower();
+        }
+    }
+
+    @Benchmark
+    public boolean nearContextCap(NearCapState s) {
+        s.scheduler.enqueueToast(PID, "MainActivity", s.queued, ToastScheduler.LENGTH_SHORT);
+        return s.scheduler.enqueueToast(PID, "MainActivity", s.rejected, ToastScheduler.LENGTH_SHORT);
+    }
+}